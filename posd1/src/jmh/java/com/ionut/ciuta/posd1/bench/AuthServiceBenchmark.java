@@ -0,0 +1,118 @@
+package com.ionut.ciuta.posd1.bench;
+
+import com.ionut.ciuta.posd1.POSD1;
+import com.ionut.ciuta.posd1.model.File;
+import com.ionut.ciuta.posd1.model.Permission;
+import com.ionut.ciuta.posd1.model.Resource;
+import com.ionut.ciuta.posd1.model.sql.Role;
+import com.ionut.ciuta.posd1.model.sql.User;
+import com.ionut.ciuta.posd1.repository.RoleRepository;
+import com.ionut.ciuta.posd1.repository.UserRepository;
+import com.ionut.ciuta.posd1.service.AuthService;
+import com.ionut.ciuta.posd1.service.PermissionCache;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the AuthService authorization path against an embedded H2 database.
+ *
+ * The user holds roles roles, all granting read; the resource acl holds aclSize entries and only
+ * its last one is a role of the user. Cold benchmarks drop the user's cached permissions first,
+ * so every call goes to the repository; warm ones only hit the permission cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthServiceBenchmark {
+    private static final String USER = "bench";
+
+    @Param({"1", "10", "100"})
+    private int roles;
+
+    @Param({"1", "10", "100"})
+    private int aclSize;
+
+    private ConfigurableApplicationContext context;
+    private AuthService authService;
+    private PermissionCache permissionCache;
+    private UserRepository userRepository;
+    private TransactionTemplate transaction;
+
+    private Resource resource;
+
+    @Setup
+    public void setUp() {
+        context = new SpringApplicationBuilder(POSD1.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.datasource.url=jdbc:h2:mem:bench" + System.nanoTime() + ";MODE=MySQL",
+                        "--spring.datasource.driver-class-name=org.h2.Driver",
+                        "--spring.jpa.show-sql=false",
+                        "--logging.level.com.ionut.ciuta.posd1=WARN");
+
+        authService = context.getBean(AuthService.class);
+        permissionCache = context.getBean(PermissionCache.class);
+        userRepository = context.getBean(UserRepository.class);
+        transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+
+        RoleRepository roleRepository = context.getBean(RoleRepository.class);
+        transaction.execute(status -> {
+            User user = new User(USER, USER);
+            for(int i = 0; i < roles; i++) {
+                user.getRoles().add(roleRepository.save(new Role("user" + i, Permission.R)));
+            }
+            return userRepository.save(user);
+        });
+
+        Set<String> acl = new HashSet<>();
+        for(int i = 0; i < aclSize - 1; i++) {
+            acl.add("other" + i);
+        }
+        acl.add("user" + (roles - 1));
+        resource = new File("file", "content", "owner", acl);
+
+        /* Roles load lazily, warm the cache inside a transaction like a web request would */
+        transaction.execute(status -> authService.hasPermission(USER, resource, Permission.R));
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public User findByName() {
+        return transaction.execute(status -> userRepository.findByName(USER));
+    }
+
+    @Benchmark
+    public Boolean hasPermissionCold() {
+        permissionCache.invalidate(USER);
+        return transaction.execute(status -> authService.hasPermission(USER, resource, Permission.R));
+    }
+
+    @Benchmark
+    public boolean hasPermissionWarm() {
+        return authService.hasPermission(USER, resource, Permission.R);
+    }
+
+    @Benchmark
+    public boolean canReadWarm() {
+        return authService.canRead(USER, resource);
+    }
+
+    @Benchmark
+    public boolean canWriteWarm() {
+        return authService.canWrite(USER, resource);
+    }
+}
@@ -0,0 +1,298 @@
+package com.ionut.ciuta.posd1.bench;
+
+import com.ionut.ciuta.posd1.POSD1;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed loop HTTP load generator for the sci/hw/resource endpoints.
+ *
+ * Without --target it starts the application on a random port against an in-memory H2 database.
+ * Each worker logs in as alice or bob, seeds a few files under its own root and then issues a
+ * weighted mix of create, read, write and add_role calls until the duration elapses.
+ *
+ * With --virtual=true the embedded application handles requests on virtual threads (Java 21 runtime),
+ * running the same load with and without it compares them to the platform worker pool at high concurrency.
+ * With --wal=true every change is logged and fsynced in a fresh temporary directory before it is acknowledged.
+ *
+ * Options come as --name=value arguments or, under exec:java, as load.name system properties:
+ * mvn -P benchmark test-compile exec:java -Dload.threads=32 -Dload.warmup=5 -Dload.duration=30 \
+ *     -Dload.mix=10:70:15:5 [-Dload.virtual=true] [-Dload.wal=true] [-Dload.target=http://host:8080]
+ */
+public class LoadTest {
+    private static final String[] OPERATIONS = {"create", "read", "write", "add_role"};
+    private static final String[] USERS = {"alice", "bob"};
+
+    private final String target;
+    private final int threads;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int[] mix;
+
+    private LoadTest(String target, int threads, int warmupSeconds, int durationSeconds, int[] mix) {
+        this.target = target;
+        this.threads = threads;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        ConfigurableApplicationContext context = null;
+        String target = options.get("target");
+        int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+
+        /* Keep one connection per worker alive, the JDK default of 5 would reconnect on almost every request */
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+
+        if(target == null) {
+            context = new SpringApplicationBuilder(POSD1.class).run(
+                    "--server.port=0",
+                    "--spring.datasource.url=jdbc:h2:mem:load;MODE=MySQL",
+                    "--spring.datasource.driver-class-name=org.h2.Driver",
+                    "--spring.jpa.show-sql=false",
+                    "--spring.threads.virtual.enabled=" + options.getOrDefault("virtual", "false"),
+                    "--storage.wal.enabled=" + options.getOrDefault("wal", "false"),
+                    "--storage.dir=" + Files.createTempDirectory("load"),
+                    "--logging.level.com.ionut.ciuta.posd1=WARN");
+            target = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+        }
+
+        try {
+            new LoadTest(
+                    target,
+                    threads,
+                    Integer.parseInt(options.getOrDefault("warmup", "5")),
+                    Integer.parseInt(options.getOrDefault("duration", "30")),
+                    Arrays.stream(options.getOrDefault("mix", "10:70:15:5").split(":"))
+                            .mapToInt(Integer::parseInt)
+                            .toArray()
+            ).run();
+        } finally {
+            if(context != null) {
+                context.close();
+            }
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(String name : System.getProperties().stringPropertyNames()) {
+            if(name.startsWith("load.")) {
+                options.put(name.substring("load.".length()), System.getProperty(name));
+            }
+        }
+
+        for(String arg : args) {
+            if(arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        return options;
+    }
+
+    private void run() throws Exception {
+        System.out.printf("Target %s, %d threads, mix create:read:write:add_role = %s%n",
+                target, threads, Arrays.toString(mix));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Recorder>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        for(int i = 0; i < threads; i++) {
+            int worker = i;
+            futures.add(executor.submit(() -> new Worker(worker).run(measureFrom, end)));
+        }
+
+        Recorder total = new Recorder();
+        for(Future<Recorder> future : futures) {
+            total.merge(future.get());
+        }
+        executor.shutdown();
+
+        total.report(durationNanos);
+    }
+
+    private class Worker {
+        private final int id;
+        private final String user;
+        private final List<String> files = new ArrayList<>();
+        private int created;
+
+        Worker(int id) {
+            this.id = id;
+            this.user = USERS[id % USERS.length];
+        }
+
+        Recorder run(long measureFrom, long end) throws IOException {
+            Recorder recorder = new Recorder();
+            for(int i = 0; i < 5; i++) {
+                create();
+            }
+
+            int weights = Arrays.stream(mix).sum();
+            long now;
+            while((now = System.nanoTime()) < end) {
+                int op = pick(ThreadLocalRandom.current().nextInt(weights));
+                int status = execute(op);
+                long latency = System.nanoTime() - now;
+
+                if(now >= measureFrom) {
+                    recorder.record(op, latency, status);
+                }
+            }
+
+            return recorder;
+        }
+
+        private int pick(int roll) {
+            for(int op = 0; op < mix.length; op++) {
+                roll -= mix[op];
+                if(roll < 0) {
+                    return op;
+                }
+            }
+            return mix.length - 1;
+        }
+
+        private int execute(int op) throws IOException {
+            String file = files.get(ThreadLocalRandom.current().nextInt(files.size()));
+
+            switch (op) {
+                case 0:
+                    return create();
+
+                case 1:
+                    return post("read", "name=" + encode(file));
+
+                case 2:
+                    return post("write", "name=" + encode(file) + "&value=v" + System.nanoTime());
+
+                default:
+                    return post("add_role", "resource=" + encode(file) + "&role=load" + id);
+            }
+        }
+
+        private int create() throws IOException {
+            String file = "/" + user + "/load" + id + "/file" + created++;
+            int status = post("create", "name=" + encode(file) + "&value=content&type=1");
+            if(status == HttpURLConnection.HTTP_OK) {
+                files.add(file);
+            }
+            return status;
+        }
+
+        private int post(String action, String query) throws IOException {
+            URL url = new URL(target + "/sci/hw/resource/" + user + "/" + action + "?" + query);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/plain");
+
+            try(OutputStream out = connection.getOutputStream()) {
+                out.write(user.getBytes(StandardCharsets.UTF_8));
+            }
+
+            int status = connection.getResponseCode();
+
+            /* Drain the body so the connection goes back to the keep-alive pool */
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if(in != null) {
+                try(InputStream body = in) {
+                    byte[] buffer = new byte[1024];
+                    while(body.read(buffer) != -1) {
+                    }
+                }
+            }
+
+            return status;
+        }
+
+        private String encode(String value) throws IOException {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+    }
+
+    private static class Recorder {
+        private final long[][] latencies = new long[OPERATIONS.length][1024];
+        private final int[] counts = new int[OPERATIONS.length];
+        private final int[] errors = new int[OPERATIONS.length];
+
+        void record(int op, long latency, int status) {
+            if(counts[op] == latencies[op].length) {
+                latencies[op] = Arrays.copyOf(latencies[op], counts[op] * 2);
+            }
+            latencies[op][counts[op]++] = latency;
+
+            if(status != HttpURLConnection.HTTP_OK) {
+                errors[op]++;
+            }
+        }
+
+        void merge(Recorder other) {
+            for(int op = 0; op < OPERATIONS.length; op++) {
+                for(int i = 0; i < other.counts[op]; i++) {
+                    record(op, other.latencies[op][i], HttpURLConnection.HTTP_OK);
+                }
+                errors[op] += other.errors[op];
+            }
+        }
+
+        void report(long durationNanos) {
+            double seconds = durationNanos / 1e9;
+            long[] all = new long[0];
+
+            System.out.printf("%-10s %10s %10s %8s %10s %10s %10s%n",
+                    "operation", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms");
+
+            for(int op = 0; op < OPERATIONS.length; op++) {
+                long[] sorted = Arrays.copyOf(latencies[op], counts[op]);
+                Arrays.sort(sorted);
+                line(OPERATIONS[op], sorted, errors[op], seconds);
+
+                int offset = all.length;
+                all = Arrays.copyOf(all, offset + sorted.length);
+                System.arraycopy(sorted, 0, all, offset, sorted.length);
+            }
+
+            Arrays.sort(all);
+            line("total", all, Arrays.stream(errors).sum(), seconds);
+        }
+
+        private void line(String name, long[] sorted, int errors, double seconds) {
+            System.out.printf("%-10s %10d %10.1f %8d %10.3f %10.3f %10.3f%n",
+                    name, sorted.length, sorted.length / seconds, errors,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999));
+        }
+
+        private double percentile(long[] sorted, double quantile) {
+            if(sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(index, 0)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.ionut.ciuta.posd1.bench;
+
+import com.ionut.ciuta.posd1.model.Acl;
+import com.ionut.ciuta.posd1.model.File;
+import com.ionut.ciuta.posd1.model.Folder;
+import com.ionut.ciuta.posd1.model.InsertionPoint;
+import com.ionut.ciuta.posd1.model.Resource;
+import com.ionut.ciuta.posd1.service.BlobStore;
+import com.ionut.ciuta.posd1.service.ResourceService;
+import com.ionut.ciuta.posd1.service.Storage;
+import com.ionut.ciuta.posd1.service.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the ResourceService resolver hot path on synthetic trees.
+ *
+ * Every level holds fanOut folders and the searched path always goes through the last one,
+ * the bottom level holds fanOut files. With indexed=true the spine is also registered in the
+ * storage path index, otherwise every lookup walks the tree. Run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceServiceBenchmark {
+    private static final String ROOT = "bench";
+
+    @Param({"4", "16"})
+    private int depth;
+
+    @Param({"10", "1000"})
+    private int fanOut;
+
+    @Param({"false", "true"})
+    private boolean indexed;
+
+    private ResourceService resourceService;
+    private Folder root;
+
+    private String existing;
+    private String missing;
+    private String insertion;
+    private List<String> chain;
+
+    @Setup
+    public void setUp() throws IOException {
+        Storage storage = new Storage();
+        String dir = Files.createTempDirectory("bench-storage").toString();
+        resourceService = new ResourceService();
+        ReflectionTestUtils.setField(resourceService, "storage", storage);
+        ReflectionTestUtils.setField(resourceService, "blobStore", new BlobStore(dir, 256, 1 << 20, 0, 0, 64 << 20));
+        ReflectionTestUtils.setField(resourceService, "writeAheadLog", new WriteAheadLog(false, dir, 256, 60_000, 10_000));
+
+        root = new Folder(ROOT, ROOT);
+        storage.addResource(ROOT, root);
+
+        Folder parent = root;
+        StringBuilder path = new StringBuilder(ROOT);
+
+        for(int level = 0; level < depth; level++) {
+            Folder last = null;
+            for(int i = 0; i < fanOut; i++) {
+                last = new Folder("d" + level + "_" + i, ROOT);
+                parent.add(last);
+            }
+
+            parent = last;
+            path.append('/').append(parent.name);
+            if(indexed) {
+                storage.indexResource(path.toString(), parent);
+            }
+        }
+
+        File target = null;
+        for(int i = 0; i < fanOut; i++) {
+            target = new File("f" + i, "content", ROOT);
+            parent.add(target);
+        }
+
+        existing = path + "/" + target.name;
+        missing = path + "/missing";
+        insertion = path + "/new/a/b";
+
+        if(indexed) {
+            storage.indexResource(existing, target);
+        }
+
+        chain = new ArrayList<>();
+        for(int i = 0; i < depth; i++) {
+            chain.add("c" + i);
+        }
+    }
+
+    @Benchmark
+    public Resource find() {
+        return resourceService.find(existing);
+    }
+
+    @Benchmark
+    public boolean existsHit() {
+        return resourceService.exists(existing);
+    }
+
+    @Benchmark
+    public boolean existsMiss() {
+        return resourceService.exists(missing);
+    }
+
+    @Benchmark
+    public InsertionPoint findParent() {
+        return resourceService.findParent(insertion, root);
+    }
+
+    @Benchmark
+    public Resource createResourceFromPath() {
+        return resourceService.createResourceFromPath(chain, "content", ROOT, Acl.EMPTY);
+    }
+}
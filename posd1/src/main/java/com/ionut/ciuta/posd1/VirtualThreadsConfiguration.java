@@ -0,0 +1,60 @@
+package com.ionut.ciuta.posd1;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs every request, and with it the blocking repository calls it makes, on its own virtual thread
+ * instead of Tomcat's worker pool. Enabled with spring.threads.virtual.enabled=true on a Java 21+ runtime;
+ * the classes keep their Java 9 target, so the executor is looked up reflectively.
+ */
+@Configuration
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadsConfiguration implements DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadsConfiguration.class);
+
+    private ExecutorService executor;
+
+    /* Shut down here through the interface, the JDK implementation class is not accessible to a destroy method */
+    @Bean(destroyMethod = "")
+    public ExecutorService virtualThreadExecutor() {
+        try {
+            executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            log.info("Handling requests on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(
+                    "spring.threads.virtual.enabled needs Java 21 or newer, running on " + System.getProperty("java.version"), e);
+        }
+    }
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadConnector(ExecutorService virtualThreadExecutor) {
+        return factory -> factory.addConnectorCustomizers(connector -> {
+            ProtocolHandler handler = connector.getProtocolHandler();
+            if(handler instanceof AbstractProtocol) {
+                ((AbstractProtocol<?>) handler).setExecutor(virtualThreadExecutor);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        if(executor != null) {
+            executor.shutdown();
+        }
+    }
+}
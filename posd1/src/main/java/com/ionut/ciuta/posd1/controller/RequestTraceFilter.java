@@ -0,0 +1,41 @@
+package com.ionut.ciuta.posd1.controller;
+
+import com.ionut.ciuta.posd1.service.RequestTrace;
+import com.ionut.ciuta.posd1.service.SlowRequestLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Traces the phases of every resource request and hands the result to the slow request log.
+ */
+@Component
+public class RequestTraceFilter extends OncePerRequestFilter {
+    private static final String TRACED_PATH = "/sci/hw/resource/";
+
+    @Autowired
+    private SlowRequestLog slowRequestLog;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().contains(TRACED_PATH);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain chain) throws ServletException, IOException {
+        RequestTrace.begin(request.getMethod() + " " + request.getRequestURI());
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            slowRequestLog.record(RequestTrace.end());
+        }
+    }
+}
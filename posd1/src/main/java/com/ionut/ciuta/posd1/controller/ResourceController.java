@@ -2,15 +2,24 @@ package com.ionut.ciuta.posd1.controller;
 
 import com.ionut.ciuta.posd1.dto.Message;
 import com.ionut.ciuta.posd1.exception.ExceptionWithStatusCode;
+import com.ionut.ciuta.posd1.exception.CustomException;
+import com.ionut.ciuta.posd1.model.File;
+import com.ionut.ciuta.posd1.model.Revision;
 import com.ionut.ciuta.posd1.service.ManagementService;
+import com.ionut.ciuta.posd1.service.RequestTrace;
+import com.ionut.ciuta.posd1.service.RequestTrace.Phase;
 import com.ionut.ciuta.posd1.service.ResourceAccessService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ionutciuta24@gmail.com on 26.10.2017.
  */
@@ -38,8 +47,10 @@ public class ResourceController {
                                                   @RequestParam Integer type) {
         try {
             resourceAccessService.create(user, pass, name, value);
+            RequestTrace.phase(Phase.RESPONSE);
             return ResponseEntity.ok().build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error(
                     "writeResource failed with {} for {} {} {} {}",
                     e.getClass().getSimpleName(), user, pass, name, value);
@@ -53,8 +64,15 @@ public class ResourceController {
                                                 @RequestBody String pass,
                                                 @RequestParam String name) {
         try {
-            return ResponseEntity.ok(new Message(resourceAccessService.read(user, pass, name)));
+            Revision revision = resourceAccessService.readRevision(user, pass, name);
+            RequestTrace.phase(Phase.RESPONSE);
+
+            if(revision.isVersioned()) {
+                return ResponseEntity.ok().eTag(eTag(revision.version)).body(new Message(revision.content));
+            }
+            return ResponseEntity.ok(new Message(revision.content));
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error(
                     "readResource failed with {} for {} {} {}",
                     e.getClass().getSimpleName(), user, pass, name);
@@ -67,11 +85,14 @@ public class ResourceController {
     public ResponseEntity<Message> writeResource(@PathVariable String user,
                                                  @RequestBody String pass,
                                                  @RequestParam String name,
-                                                 @RequestParam String value) {
+                                                 @RequestParam String value,
+                                                 @RequestHeader(value = "If-Match", required = false) String ifMatch) {
         try {
-            resourceAccessService.write(user, pass, name, value);
-            return ResponseEntity.ok().build();
+            long version = resourceAccessService.write(user, pass, name, value, expectedVersions(ifMatch));
+            RequestTrace.phase(Phase.RESPONSE);
+            return ResponseEntity.ok().eTag(eTag(version)).build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error(
                     "writeResource failed with {} for {} {} {} {}",
                     e.getClass().getSimpleName(), user, pass, name, value);
@@ -87,8 +108,10 @@ public class ResourceController {
                                                 @RequestParam String rights) {
         try {
             resourceAccessService.changeRights(user, pass, name, rights);
+            RequestTrace.phase(Phase.RESPONSE);
             return ResponseEntity.ok().build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error(
                     "changeRights failed with {} for {} {} {} {} {}",
                     e.getClass().getSimpleName(), user, pass, name, rights);
@@ -103,8 +126,10 @@ public class ResourceController {
                                               @RequestParam String role) {
         try {
             managementService.createRole(user, pass, role);
+            RequestTrace.phase(Phase.RESPONSE);
             return ResponseEntity.ok().build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error("createRole: {}, {}, {}", user, pass, role);
             return new ResponseEntity<>(new Message(e.text), e.status);
         }
@@ -118,8 +143,10 @@ public class ResourceController {
                                                     @RequestParam String rights) {
         try {
             managementService.changeRights(user, pass, role, rights);
+            RequestTrace.phase(Phase.RESPONSE);
             return ResponseEntity.ok().build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error("changeRoleRights: {}, {}, {}, {}", user, pass, role, rights);
             return new ResponseEntity<>(new Message(e.text), e.status);
         }
@@ -133,8 +160,10 @@ public class ResourceController {
                                               @RequestParam String assignee) {
         try {
             managementService.assignRole(user, pass, assignee, role);
+            RequestTrace.phase(Phase.RESPONSE);
             return ResponseEntity.ok().build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error("assignRole: {}, {}, {}, {}", user, pass, role, assignee);
             return new ResponseEntity<>(new Message(e.text), e.status);
         }
@@ -148,10 +177,57 @@ public class ResourceController {
                                            @RequestParam String role) {
         try {
             resourceAccessService.addRights(user, pass, resource, role);
+            RequestTrace.phase(Phase.RESPONSE);
             return ResponseEntity.ok().build();
         } catch (ExceptionWithStatusCode e) {
+            RequestTrace.phase(Phase.RESPONSE);
             log.error("addRole: {}, {}, {}, {}", user, pass, resource, role);
             return new ResponseEntity<>(new Message(e.text), e.status);
         }
     }
+
+    private static String eTag(long version) {
+        return "\"" + version + "\"";
+    }
+
+    /*
+     * Versions named by If-Match: '*' or a comma separated list of entity tags, any of which may match.
+     * Comparison is strong, so weak tags and tags that are not one of our versions are valid but never match.
+     * Anything that is not an entity tag is rejected.
+     */
+    private static long[] expectedVersions(String ifMatch) {
+        if(ifMatch == null || ifMatch.trim().equals("*")) {
+            return new long[]{File.ANY_VERSION};
+        }
+
+        List<Long> versions = new ArrayList<>();
+        for(String element : ifMatch.split(",")) {
+            String tag = element.trim();
+            boolean weak = tag.startsWith("W/");
+            if(weak) {
+                tag = tag.substring(2);
+            }
+
+            /* Lists may hold empty elements */
+            if(tag.isEmpty() && !weak) {
+                continue;
+            }
+
+            if(tag.length() < 2 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"'
+                    || tag.indexOf('"', 1) != tag.length() - 1) {
+                throw new CustomException(HttpStatus.BAD_REQUEST, "Malformed If-Match");
+            }
+
+            String version = tag.substring(1, tag.length() - 1);
+            if(!weak && !version.isEmpty() && version.chars().allMatch(Character::isDigit)) {
+                try {
+                    versions.add(Long.parseLong(version));
+                } catch (NumberFormatException e) {
+                    /* Too large to be one of ours */
+                }
+            }
+        }
+
+        return versions.stream().mapToLong(Long::longValue).toArray();
+    }
 }
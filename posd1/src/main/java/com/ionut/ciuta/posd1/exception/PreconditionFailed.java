@@ -0,0 +1,9 @@
+package com.ionut.ciuta.posd1.exception;
+
+import org.springframework.http.HttpStatus;
+
+public class PreconditionFailed extends ExceptionWithStatusCode {
+    public PreconditionFailed() {
+        super(HttpStatus.PRECONDITION_FAILED, "Version Mismatch");
+    }
+}
@@ -0,0 +1,141 @@
+package com.ionut.ciuta.posd1.model;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable set of role names allowed on a resource, compiled into a bitset of role ids
+ * so an access check is a single intersection against the user's roles.
+ * Instances are interned, resources with the same roles share one Acl; changes go through {@link #with}.
+ * The pool only holds them weakly, an Acl no resource uses anymore is collected and drops out of it.
+ *
+ * Only roles that exist get an id, so a role name on an Acl may have none yet; the bitset is compiled again
+ * once further roles got ids since it was last compiled.
+ */
+public final class Acl extends AbstractSet<String> {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /* Number of ids given out, written after the id is in the map; new ids are assigned holding the class lock */
+    private static volatile int assigned;
+
+    /* Keyed by the Acl itself, which equals any set with the same roles; guarded by itself */
+    private static final Map<Acl, WeakReference<Acl>> pool = new WeakHashMap<>();
+
+    public static final Acl EMPTY = of(Collections.emptySet());
+
+    /* Ids of the roles that had one when compiled, and how many ids were assigned at that point */
+    private static final class Compiled {
+        final BitSet roleIds = new BitSet();
+        final int assigned;
+
+        Compiled(int assigned) {
+            this.assigned = assigned;
+        }
+    }
+
+    private final Set<String> roles;
+    private volatile Compiled compiled;
+    private final int hash;
+
+    private Acl(Set<String> roles) {
+        this.roles = Collections.unmodifiableSet(roles);
+        this.compiled = compile();
+        this.hash = roles.hashCode();
+    }
+
+    public static Acl of(Set<String> roles) {
+        if(roles == null || roles instanceof Acl)
+            return (Acl) roles;
+
+        synchronized (pool) {
+            WeakReference<Acl> interned = pool.get(roles);
+            Acl acl = interned == null ? null : interned.get();
+            if(acl == null) {
+                acl = new Acl(new HashSet<>(roles));
+                pool.put(acl, new WeakReference<>(acl));
+            }
+            return acl;
+        }
+    }
+
+    /* Dense, process wide id for a role name; only for roles known to the role repository */
+    public static int idOf(String role) {
+        Integer id = ids.get(role);
+        return id != null ? id : assign(role);
+    }
+
+    private static synchronized int assign(String role) {
+        Integer id = ids.get(role);
+        if(id == null) {
+            id = assigned;
+            ids.put(role, id);
+            assigned = id + 1;
+        }
+        return id;
+    }
+
+    /* Id of a role that already has one, -1 for any other name; lookups must not grow the id space */
+    public static int findId(String role) {
+        Integer id = ids.get(role);
+        return id == null ? -1 : id;
+    }
+
+    /* Copy on write: the shared instance is left untouched */
+    public Acl with(String role) {
+        if(roles.contains(role))
+            return this;
+
+        Set<String> copy = new HashSet<>(roles);
+        copy.add(role);
+        return of(copy);
+    }
+
+    public boolean intersects(BitSet roles) {
+        Compiled current = compiled;
+        if(current.assigned != assigned) {
+            /* Racing threads compile the same bits, whichever is written last is as good as the other */
+            compiled = current = compile();
+        }
+        return current.roleIds.intersects(roles);
+    }
+
+    /* Reads the count first: every id below it is already in the map */
+    private Compiled compile() {
+        Compiled next = new Compiled(assigned);
+        for(String role : roles) {
+            int id = findId(role);
+            if(id >= 0) {
+                next.roleIds.set(id);
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public boolean contains(Object role) {
+        return roles.contains(role);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return roles.iterator();
+    }
+
+    @Override
+    public int size() {
+        return roles.size();
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
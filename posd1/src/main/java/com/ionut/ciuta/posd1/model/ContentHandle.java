@@ -0,0 +1,22 @@
+package com.ionut.ciuta.posd1.model;
+
+/**
+ * Reference to the content of a file, which may live on the heap or in the off-heap blob store.
+ * Handles are immutable, a new version of a file gets a new handle.
+ */
+public interface ContentHandle {
+    String read();
+
+    /* Reads without counting as an access: no effect on caching or on compression of cold contents */
+    String peek();
+
+    /* Size as stored, UTF-8 bytes for blobs and characters for inline contents */
+    int size();
+
+    boolean contentEquals(String content);
+
+    /* Content kept as a plain heap string, for small contents that are not worth a blob */
+    static ContentHandle of(String content) {
+        return new InlineContent(content);
+    }
+}
@@ -0,0 +1,40 @@
+package com.ionut.ciuta.posd1.model;
+
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * A user's roles compiled per permission mask: for every mask, the ids of the roles granting all of it.
+ */
+public class EffectivePermissions {
+    private final BitSet[] granted = new BitSet[Permission.ALL + 1];
+
+    public EffectivePermissions(Map<String, Integer> roles) {
+        for(int mask = 0; mask <= Permission.ALL; mask++) {
+            granted[mask] = new BitSet();
+        }
+
+        roles.forEach((role, roleMask) -> {
+            int id = Acl.idOf(role);
+            for(int mask = 0; mask <= Permission.ALL; mask++) {
+                if((roleMask & mask) == mask) {
+                    granted[mask].set(id);
+                }
+            }
+        });
+    }
+
+    public boolean allows(Acl acl, int permission) {
+        return acl != null && acl.intersects(granted[permission & Permission.ALL]);
+    }
+
+    public boolean hasRole(String role) {
+        /* A name without an id was never granted to anyone. Every role grants the empty mask */
+        int id = Acl.findId(role);
+        return id >= 0 && granted[Permission.NO_ACCESS].get(id);
+    }
+
+    public int roleCount() {
+        return granted[Permission.NO_ACCESS].cardinality();
+    }
+}
@@ -6,20 +6,90 @@ import java.util.Set;
  * ionutciuta24@gmail.com on 25.10.2017.
  */
 public class File extends Resource {
-    public String content;
+    /* Expected version that matches any current version, for unconditional writes */
+    public static final long ANY_VERSION = -1;
+
+    /* The file keeps only a handle, large contents stay off-heap until read */
+    private final ContentHandle content;
+    private final long version;
 
     public File(String name, String content, String owner) {
-        super(name, Type.FILE, owner);
-        this.content = content;
+        this(name, ContentHandle.of(content), 1, owner);
     }
 
     public File(String name, String content, String owner, Set<String> acl) {
+        this(name, ContentHandle.of(content), owner, acl);
+    }
+
+    public File(String name, ContentHandle content, String owner, Set<String> acl) {
+        this(name, content, 1, owner, acl);
+    }
+
+    /* Restores a file at a given version, as read back from a snapshot */
+    public File(String name, ContentHandle content, long version, String owner, Set<String> acl) {
         super(name, Type.FILE, owner, acl);
         this.content = content;
+        this.version = version;
+    }
+
+    private File(String name, ContentHandle content, long version, String owner) {
+        super(name, Type.FILE, owner);
+        this.content = content;
+        this.version = version;
+    }
+
+    private File(File source, Acl acl, ContentHandle content, long version) {
+        super(source, acl);
+        this.content = content;
+        this.version = version;
+    }
+
+    public String getContent() {
+        return content.read();
+    }
+
+    /* Content for background work such as checkpoints, leaves the content as cold as it was */
+    public String peekContent() {
+        return content.peek();
+    }
+
+    public ContentHandle getHandle() {
+        return content;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Revision getRevision() {
+        return new Revision(content.read(), version);
+    }
+
+    public boolean isAtVersion(long... expectedVersions) {
+        for(long expectedVersion : expectedVersions) {
+            if(expectedVersion == ANY_VERSION || expectedVersion == version) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Copy holding the next version of the content */
+    public File withContent(String content) {
+        return withContent(ContentHandle.of(content));
+    }
+
+    public File withContent(ContentHandle content) {
+        return new File(this, acl, content, version + 1);
+    }
+
+    @Override
+    public File withAcl(Acl acl) {
+        return new File(this, acl, content, version);
     }
 
     @Override
     public String toString() {
-        return super.toString() + "File content -> " + content + '\n';
+        return super.toString() + "File content -> " + getContent() + '\n';
     }
 }
@@ -1,21 +1,82 @@
 package com.ionut.ciuta.posd1.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * ionutciuta24@gmail.com on 25.10.2017.
  */
 public class Folder extends Resource {
-    public List<Resource> content = new ArrayList<>();
+    /* Grows through add() only while the folder is being built, published folders change through with() copies */
+    private final List<Resource> content;
+
+    /* Name -> child index; content keeps the insertion order used for listings */
+    private final Map<String, Resource> children;
 
     public Folder(String name, String owner) {
         super(name, Type.FOLDER, owner);
+        this.content = new ArrayList<>();
+        this.children = new HashMap<>();
     }
 
     public Folder(String name, String owner, Set<String> acl) {
         super(name, Type.FOLDER, owner, acl);
+        this.content = new ArrayList<>();
+        this.children = new HashMap<>();
+    }
+
+    private Folder(Folder source, Acl acl, List<Resource> content, Map<String, Resource> children) {
+        super(source, acl);
+        this.content = content;
+        this.children = children;
+    }
+
+    /* Adds a child to a folder that is not published yet, a child with the same name is kept */
+    public boolean add(Resource resource) {
+        if(children.putIfAbsent(resource.name, resource) != null) {
+            return false;
+        }
+
+        content.add(resource);
+        return true;
+    }
+
+    public Resource get(String name) {
+        return children.get(name);
+    }
+
+    /* Children in insertion order, read-only */
+    public List<Resource> getContent() {
+        return Collections.unmodifiableList(content);
+    }
+
+    /* Copy holding the child, in place of the previous child with the same name if any; the other children are shared */
+    public Folder with(Resource child) {
+        Resource previous = children.get(child.name);
+        List<Resource> newContent = new ArrayList<>(content.size() + 1);
+
+        if(previous == null) {
+            newContent.addAll(content);
+            newContent.add(child);
+        } else {
+            for(Resource r : content) {
+                newContent.add(r == previous ? child : r);
+            }
+        }
+
+        Map<String, Resource> newChildren = new HashMap<>(children);
+        newChildren.put(child.name, child);
+
+        return new Folder(this, acl, Collections.unmodifiableList(newContent), Collections.unmodifiableMap(newChildren));
+    }
+
+    @Override
+    public Folder withAcl(Acl acl) {
+        return new Folder(this, acl, content, children);
     }
 
     @Override
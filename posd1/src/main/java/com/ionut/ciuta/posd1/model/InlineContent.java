@@ -0,0 +1,34 @@
+package com.ionut.ciuta.posd1.model;
+
+import java.util.Objects;
+
+/**
+ * Content held directly on the heap.
+ */
+final class InlineContent implements ContentHandle {
+    private final String content;
+
+    InlineContent(String content) {
+        this.content = content;
+    }
+
+    @Override
+    public String read() {
+        return content;
+    }
+
+    @Override
+    public String peek() {
+        return content;
+    }
+
+    @Override
+    public int size() {
+        return content == null ? 0 : content.length();
+    }
+
+    @Override
+    public boolean contentEquals(String content) {
+        return Objects.equals(this.content, content);
+    }
+}
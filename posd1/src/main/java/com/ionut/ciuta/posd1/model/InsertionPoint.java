@@ -6,8 +6,10 @@ import java.util.List;
  * ionutciuta24@gmail.com on 31.10.2017.
  */
 public class InsertionPoint {
+    public Resource root;
     public Folder hook;
     public List<String> chain;
+    public boolean exists;
 
     public InsertionPoint() {
     }
@@ -16,4 +18,11 @@ public class InsertionPoint {
         this.hook = hook;
         this.chain = chain;
     }
+
+    public InsertionPoint(Resource root, Folder hook, List<String> chain, boolean exists) {
+        this.root = root;
+        this.hook = hook;
+        this.chain = chain;
+        this.exists = exists;
+    }
 }
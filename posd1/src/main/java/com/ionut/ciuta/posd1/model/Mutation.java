@@ -0,0 +1,38 @@
+package com.ionut.ciuta.posd1.model;
+
+/**
+ * A change to the resource tree as recorded in the write-ahead log, replayed on recovery.
+ */
+public final class Mutation {
+    public static class Type {
+        public static final byte CREATE = 0;
+        public static final byte WRITE = 1;
+        public static final byte ADD_RIGHTS = 2;
+    }
+
+    public final byte type;
+    public final String path;
+    public final String content;
+    public final String user;
+    public final String role;
+
+    public Mutation(byte type, String path, String content, String user, String role) {
+        this.type = type;
+        this.path = path;
+        this.content = content;
+        this.user = user;
+        this.role = role;
+    }
+
+    public static Mutation create(String path, String content, String owner) {
+        return new Mutation(Type.CREATE, path, content, owner, null);
+    }
+
+    public static Mutation write(String path, String content) {
+        return new Mutation(Type.WRITE, path, content, null, null);
+    }
+
+    public static Mutation addRights(String path, String role) {
+        return new Mutation(Type.ADD_RIGHTS, path, null, null, role);
+    }
+}
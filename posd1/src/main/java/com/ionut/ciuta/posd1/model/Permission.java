@@ -5,4 +5,31 @@ public class Permission {
     public static final String R = "r";
     public static final String W = "w";
     public static final String RW = "rw";
+
+    /* Bitmask form used for access checks */
+    public static final int NO_ACCESS = 0;
+    public static final int READ = 1;
+    public static final int WRITE = 1 << 1;
+    public static final int ALL = READ | WRITE;
+
+    public static int mask(String permissions) {
+        int mask = NO_ACCESS;
+
+        if(permissions == null)
+            return mask;
+
+        for(int i = 0; i < permissions.length(); i++) {
+            switch (permissions.charAt(i)) {
+                case 'r':
+                    mask |= READ;
+                    break;
+
+                case 'w':
+                    mask |= WRITE;
+                    break;
+            }
+        }
+
+        return mask;
+    }
 }
@@ -2,9 +2,6 @@ package com.ionut.ciuta.posd1.model;
 
 import com.ionut.ciuta.posd1.Values;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
@@ -19,22 +16,32 @@ public abstract class Resource {
     public String name;
     public int type;
     public String owner;
-    public Set<String> acl;
+    public Acl acl;
 
     public Resource(String name, int type, String owner) {
         this.name = name;
         this.type = type;
         this.owner = owner;
-        this.acl = new HashSet<>();
+        this.acl = Acl.EMPTY;
     }
 
     public Resource(String name, int type, String owner, Set<String> acl) {
         this.name = name;
         this.type = type;
         this.owner = owner;
+        this.acl = Acl.of(acl);
+    }
+
+    protected Resource(Resource source, Acl acl) {
+        this.name = source.name;
+        this.type = source.type;
+        this.owner = source.owner;
         this.acl = acl;
     }
 
+    /* Copy with the given acl, published resources are never changed in place */
+    public abstract Resource withAcl(Acl acl);
+
     public boolean isFolder() {
         return this.type == Type.FOLDER;
     }
@@ -0,0 +1,86 @@
+package com.ionut.ciuta.posd1.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, pre-parsed resource name. Parsed paths are cached so hot names skip the string splitting.
+ */
+public final class ResourcePath {
+    private static final int CACHE_SIZE = 4096;
+    private static final Map<String, ResourcePath> cache = new ConcurrentHashMap<>();
+
+    private final List<String> segments;
+    private final String key;
+
+    private ResourcePath(String[] segments) {
+        for(int i = 0; i < segments.length; i++) {
+            segments[i] = segments[i].intern();
+        }
+        this.segments = Collections.unmodifiableList(Arrays.asList(segments));
+        this.key = String.join("/", segments);
+    }
+
+    public static ResourcePath of(String name) {
+        ResourcePath path = cache.get(name);
+        if(path != null) {
+            return path;
+        }
+
+        path = new ResourcePath(name
+                .replace('/', ' ')
+                .trim()
+                .split(" "));
+
+        /* Keep the cache bounded by dropping an arbitrary entry once it is full */
+        if(cache.size() >= CACHE_SIZE) {
+            Iterator<String> it = cache.keySet().iterator();
+            if(it.hasNext()) {
+                cache.remove(it.next());
+            }
+        }
+        cache.put(name, path);
+
+        return path;
+    }
+
+    public String root() {
+        return segments.get(0);
+    }
+
+    public String get(int i) {
+        return segments.get(i);
+    }
+
+    public int size() {
+        return segments.size();
+    }
+
+    public List<String> segments() {
+        return segments;
+    }
+
+    /* Segments joined by '/', the form used by the storage path index */
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ResourcePath && key.equals(((ResourcePath) o).key));
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,21 @@
+package com.ionut.ciuta.posd1.model;
+
+/**
+ * Content of a resource together with the version it was read at.
+ */
+public final class Revision {
+    /* Version of resources that are not versioned, such as folder listings */
+    public static final long UNVERSIONED = -1;
+
+    public final String content;
+    public final long version;
+
+    public Revision(String content, long version) {
+        this.content = content;
+        this.version = version;
+    }
+
+    public boolean isVersioned() {
+        return version != UNVERSIONED;
+    }
+}
@@ -1,5 +1,7 @@
 package com.ionut.ciuta.posd1.model.sql;
 
+import com.ionut.ciuta.posd1.model.Permission;
+
 import javax.persistence.*;
 import java.util.HashSet;
 import java.util.Set;
@@ -44,6 +46,10 @@ public class Role {
         this.permissions = permissions;
     }
 
+    public int getPermissionMask() {
+        return Permission.mask(permissions);
+    }
+
     public Set<User> getUsers() {
         return users;
     }
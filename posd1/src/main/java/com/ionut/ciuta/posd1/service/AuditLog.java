@@ -0,0 +1,152 @@
+package com.ionut.ciuta.posd1.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access decision audit trail. Request threads publish into a preallocated ring buffer without locking,
+ * a background thread drains it and appends the events to the audit file in batches.
+ * When the writer falls a full buffer behind, new events are dropped and counted instead of blocking requests.
+ */
+@Component
+public class AuditLog implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+    private static final String ALLOW = "allow";
+    private static final String DENY = "deny";
+
+    private static class Event {
+        long timestamp;
+        String user;
+        String path;
+        String permission;
+        boolean allowed;
+    }
+
+    private final Event[] slots;
+    private final AtomicLongArray published;
+    private final int mask;
+
+    /* Next sequence to claim by producers, next sequence to read by the writer */
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Path file;
+    private final int batchSize;
+    private volatile boolean running;
+    private Thread writer;
+
+    public AuditLog(@Value("${audit.file:audit.log}") String file,
+                    @Value("${audit.buffer-size:65536}") int bufferSize,
+                    @Value("${audit.batch-size:512}") int batchSize) {
+        int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+
+        this.slots = new Event[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.file = Paths.get(file);
+        this.batchSize = batchSize;
+
+        for(int i = 0; i < capacity; i++) {
+            slots[i] = new Event();
+            published.set(i, -1);
+        }
+    }
+
+    public void record(String user, String path, String permission, boolean allowed) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if(sequence - tail >= slots.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while(!head.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence & mask);
+        Event event = slots[index];
+        event.timestamp = System.currentTimeMillis();
+        event.user = user;
+        event.path = path;
+        event.permission = permission;
+        event.allowed = allowed;
+
+        /* Volatile write, hands the slot over to the writer */
+        published.set(index, sequence);
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        running = true;
+        writer = new Thread(this::drain, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private void drain() {
+        try(Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            StringBuilder line = new StringBuilder(128);
+
+            while(running || head.get() != tail) {
+                int written = 0;
+
+                while(written < batchSize && published.get((int) (tail & mask)) == tail) {
+                    Event event = slots[(int) (tail & mask)];
+                    line.setLength(0);
+                    line.append(Instant.ofEpochMilli(event.timestamp))
+                            .append(" user=").append(event.user)
+                            .append(" path=").append(event.path)
+                            .append(" permission=").append(event.permission)
+                            .append(" decision=").append(event.allowed ? ALLOW : DENY)
+                            .append('\n');
+                    event.user = event.path = event.permission = null;
+
+                    /* Release the slot only once the event has been copied out */
+                    tail = tail + 1;
+                    out.append(line);
+                    written++;
+                }
+
+                if(written > 0) {
+                    out.flush();
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Audit writer stopped, events for {} will be dropped", file, e);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.ionut.ciuta.posd1.service;
 import com.ionut.ciuta.posd1.POSD1;
 import com.ionut.ciuta.posd1.Values;
 import com.ionut.ciuta.posd1.exception.ResourceOperationNotPermitted;
+import com.ionut.ciuta.posd1.model.EffectivePermissions;
 import com.ionut.ciuta.posd1.model.Permission;
 import com.ionut.ciuta.posd1.model.Resource;
 import com.ionut.ciuta.posd1.model.sql.Role;
@@ -23,21 +24,68 @@ public class AuthService {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private CredentialCache credentialCache;
+
+    @Autowired
+    private PermissionCache permissionCache;
+
+    @Autowired
+    private OperationMetrics metrics;
+
     public boolean isAuthenticated(String user, String pass) {
-        User dbUser = userRepository.findByName(user);
-        return dbUser != null && dbUser.getName().equals(user) && dbUser.getPass().equals(pass);
+        long start = System.nanoTime();
+        boolean authenticated = authenticate(user, pass);
+        metrics.record(OperationMetrics.AUTH, "authenticate",
+                authenticated ? OperationMetrics.OK : OperationMetrics.UNAUTHORIZED, System.nanoTime() - start);
+        return authenticated;
+    }
+
+    private boolean authenticate(String user, String pass) {
+        if(credentialCache.isVerified(user, pass))
+            return true;
+
+        User dbUser = findUser(user);
+        boolean authenticated = dbUser != null && dbUser.getName().equals(user) && dbUser.getPass().equals(pass);
+
+        if(authenticated)
+            credentialCache.put(user, pass);
+
+        return authenticated;
     }
 
     public boolean isOwner(String user, Resource resource) {
-        log.info("isOwner() {} {}", user, resource);
         return resource != null
                 && resource.owner != null
                 && resource.owner.equals(user);
     }
 
     public boolean hasPermission(String user, Resource resource, String permission) {
-        log.info("hasPermission() {} {}", user, resource);
+        return hasPermission(user, resource, Permission.mask(permission));
+    }
 
+    public boolean hasPermission(String user, Resource resource, int permission) {
+        AuthorizationEvent event = new AuthorizationEvent();
+        event.begin();
+
+        long start = System.nanoTime();
+        boolean allowed = checkPermission(user, resource, permission, event);
+        metrics.record(OperationMetrics.AUTH, "has_permission",
+                allowed ? OperationMetrics.OK : OperationMetrics.FORBIDDEN, System.nanoTime() - start);
+
+        event.end();
+        if(event.shouldCommit()) {
+            event.user = user;
+            event.resource = resource == null ? null : resource.name;
+            event.permission = permission;
+            event.allowed = allowed;
+            event.commit();
+        }
+
+        return allowed;
+    }
+
+    private boolean checkPermission(String user, Resource resource, int permission, AuthorizationEvent event) {
         /* If owner, user can do anything with resource */
         if(isOwner(user, resource))
             return true;
@@ -46,34 +94,46 @@ public class AuthService {
         if(user == null || resource == null || resource.acl == null)
             return false;
 
-        User dbUser = userRepository.findByName(user);
-        log.info("hasPermission(): dbUser -> {}", dbUser);
+        EffectivePermissions permissions = permissionCache.get(user);
 
-        /* Sanity checks */
-        if(dbUser == null || dbUser.getRoles() == null)
-            return false;
+        if(permissions == null) {
+            long generation = permissionCache.generation();
+            User dbUser = findUser(user);
+            event.databaseHit = true;
+            log.debug("hasPermission(): loaded roles for {}", user);
+
+            /* Sanity checks */
+            if(dbUser == null || dbUser.getRoles() == null)
+                return false;
+
+            permissions = permissionCache.put(dbUser, generation);
+        }
 
-        return isInAcl(dbUser, resource, permission);
+        event.rolesChecked = permissions.roleCount();
+        return isInAcl(user, permissions, resource, permission);
     }
 
-    private boolean isInAcl(User user, Resource resource, String permission) {
+    private boolean isInAcl(String user, EffectivePermissions permissions, Resource resource, int permission) {
         /* Handle negative cases */
-        if(user == null || user.getRoles() == null || resource.acl == null)
+        if(permissions == null || resource.acl == null)
             return false;
 
-        /* Count matching dbRole - acl roles */
-        long count = user.getRoles().stream().filter(dbRole ->
-                resource.acl.contains(dbRole.getName()) && dbRole.getPermissions().contains(permission)).count();
+        /* Any role that is both in the acl and grants the permission */
+        boolean match = permissions.allows(resource.acl, permission);
+
+        log.debug("isInAcl() {} {} {} {}", match ? "yes" : "no", user, resource.name, permission);
+        return match;
+    }
 
-        log.info("isInAcl() {} {} {} {}", count > 0 ? "yes" : "no", user, resource, permission);
-        return count > 0;
+    private User findUser(String user) {
+        return metrics.time(OperationMetrics.REPOSITORY, "user.findByName", () -> userRepository.findByName(user));
     }
 
     public boolean canRead(String user, Resource resource) {
-        return hasPermission(user, resource, Permission.R);
+        return hasPermission(user, resource, Permission.READ);
     }
 
     public boolean canWrite(String user, Resource resource) {
-        return hasPermission(user, resource, Permission.W);
+        return hasPermission(user, resource, Permission.WRITE);
     }
 }
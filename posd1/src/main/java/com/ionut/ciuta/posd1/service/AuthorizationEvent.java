@@ -0,0 +1,35 @@
+package com.ionut.ciuta.posd1.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a permission check.
+ */
+@Name("com.ionut.ciuta.posd1.Authorization")
+@Label("Authorization")
+@Category({"POSD", "Security"})
+class AuthorizationEvent extends Event {
+    @Label("User")
+    String user;
+
+    @Label("Resource")
+    String resource;
+
+    @Label("Permission")
+    @Description("Requested permission mask")
+    int permission;
+
+    @Label("Roles Checked")
+    int rolesChecked;
+
+    @Label("Allowed")
+    boolean allowed;
+
+    @Label("Database Hit")
+    @Description("Whether the roles had to be loaded from the database")
+    boolean databaseHit;
+}
@@ -0,0 +1,736 @@
+package com.ionut.ciuta.posd1.service;
+
+import com.ionut.ciuta.posd1.model.ContentHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed, off-heap store for file contents. Contents above the inline limit are appended to
+ * memory-mapped segment files and files only hold a small handle, so the heap grows with the number of
+ * resources rather than their size.
+ *
+ * Identical contents are stored once: entries are keyed by hash and length and shared by every file revision
+ * holding the same payload. Each stored revision gets its own handle, which counts as a reference to the entry
+ * until no snapshot or reader can reach it anymore; the last release frees the entry and its bytes. A full
+ * segment is deleted once all of its blobs are freed. Segments are scratch space, contents are made durable by
+ * the write-ahead log and placed here again on recovery.
+ *
+ * A background compactor compresses blobs that were not read for a while. The next read decompresses the blob
+ * and stores it uncompressed again, so recently read contents are served without inflating.
+ *
+ * Contents share a heap budget. Inline contents are charged against it and spill to the segments once it is
+ * used up. The rest of the budget holds the decoded contents of recently read blobs in an LRU cache, so popular
+ * files are served at memory speed while the others are paged in from the mapping on demand.
+ */
+@Component
+public class BlobStore implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    /* Compressed blobs must save at least an eighth of the space, the rest stay as they are */
+    private static final int MIN_SAVING_SHIFT = 3;
+
+    /* Reads closer together than this do not update the last read time, keeps shared entries off the write path */
+    private static final long TOUCH_GRANULARITY = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static final int SCRATCH_SIZE = 4096;
+
+    /* Buffers for comparing contents with stored blobs, reused by every comparison on a thread */
+    private static final class Scratch {
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer encoded = ByteBuffer.allocate(SCRATCH_SIZE);
+        final byte[] stored = new byte[SCRATCH_SIZE];
+        final byte[] input = new byte[SCRATCH_SIZE];
+        final Inflater inflater = new Inflater(true);
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        /* Guarded by the store */
+        int position;
+        long live;
+        boolean sealed;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /* Where the bytes of an entry are: a heap string, or a region of a segment holding them raw or deflated */
+    private static final class Payload {
+        final String inline;
+        final Segment segment;
+        final int offset;
+        final int length;
+        final boolean compressed;
+
+        Payload(String inline) {
+            this(inline, null, 0, inline.length(), false);
+        }
+
+        Payload(String inline, Segment segment, int offset, int length, boolean compressed) {
+            this.inline = inline;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+        }
+
+        byte[] bytes() {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset);
+            view.get(bytes);
+            return bytes;
+        }
+    }
+
+    /* A stored content, shared by all revisions holding it */
+    private static final class Entry {
+        final long key;
+        final int hash;
+        final int chars;
+
+        /* UTF-8 size, characters for inline contents */
+        final int length;
+
+        /* Replaced under the entries map lock for key (the entry itself if not shared) when the blob is compressed or restored */
+        volatile Payload payload;
+        volatile long lastRead;
+
+        /* Set under the same lock once the last reference is gone, the payload must not be replaced or cached anymore */
+        volatile boolean dead;
+
+        /* Guarded by the entries map, only changed in compute calls for key */
+        int refs;
+        boolean shared;
+
+        /* Only touched by the compactor */
+        boolean incompressible;
+
+        Entry(long key, String content, int length, Payload payload) {
+            this.key = key;
+            this.hash = content.hashCode();
+            this.chars = content.length();
+            this.length = length;
+            this.payload = payload;
+            this.lastRead = System.nanoTime();
+        }
+    }
+
+    /*
+     * One per stored file revision, holds a reference on the shared entry. The cleaner may release the entry as soon
+     * as the handle is unreachable, which can be while a method still uses the entry; the fences prevent that.
+     */
+    private final class Ref implements ContentHandle {
+        private final Entry entry;
+
+        Ref(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public String read() {
+            try {
+                return BlobStore.this.read(entry);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        @Override
+        public String peek() {
+            try {
+                return BlobStore.this.peek(entry);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        @Override
+        public int size() {
+            return entry.length;
+        }
+
+        @Override
+        public boolean contentEquals(String content) {
+            try {
+                return content != null && holds(entry, content, null);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+    }
+
+    private final Path dir;
+    private final int inlineMax;
+    private final int segmentSize;
+    private final long coldAfterNanos;
+    private final long compactIntervalMs;
+    private final long heapMaxBytes;
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    /* Entries whose key was taken by another content, kept here until released so the compactor still finds them */
+    private final Set<Entry> unshared = ConcurrentHashMap.newKeySet();
+    private final ContentCache<Entry> cache = new ContentCache<>();
+    private final AtomicLong inlineBytes = new AtomicLong();
+
+    private Segment current;
+    private long segmentNumber;
+    private long segmentBytes;
+
+    private ScheduledExecutorService compactor;
+
+    public BlobStore(@Value("${storage.dir:data}") String dir,
+                     @Value("${storage.blob.inline-max:256}") int inlineMax,
+                     @Value("${storage.blob.segment-size:67108864}") int segmentSize,
+                     @Value("${storage.compression.cold-after-ms:600000}") long coldAfterMs,
+                     @Value("${storage.compression.interval-ms:60000}") long compactIntervalMs,
+                     @Value("${storage.heap.max-bytes:67108864}") long heapMaxBytes) {
+        this.dir = Paths.get(dir, "blobs");
+        this.inlineMax = inlineMax;
+        this.segmentSize = segmentSize;
+        this.coldAfterNanos = TimeUnit.MILLISECONDS.toNanos(coldAfterMs);
+        this.compactIntervalMs = compactIntervalMs;
+        this.heapMaxBytes = heapMaxBytes;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if(coldAfterNanos <= 0)
+            return;
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "blob-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactSafely, compactIntervalMs, compactIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if(compactor != null) {
+            compactor.shutdownNow();
+        }
+    }
+
+    /* Handle on the stored content, the payload is shared with any other live revision holding the same content */
+    public ContentHandle store(String content) {
+        if(content == null) {
+            return ContentHandle.of(null);
+        }
+
+        /* Small contents stay on the heap while they fit in the budget, then spill to the segments too */
+        boolean inline = content.length() <= inlineMax && inlineBytes.get() + content.length() <= heapMaxBytes;
+        byte[] bytes = inline ? null : content.getBytes(StandardCharsets.UTF_8);
+        Entry entry = entry(content, bytes);
+
+        Ref ref = new Ref(entry);
+        cleaner.register(ref, () -> release(entry));
+        return ref;
+    }
+
+    /* The entry holding content with a reference taken, a new one if no equal content is stored */
+    private Entry entry(String content, byte[] bytes) {
+        long key = ((long) content.hashCode() << 32) | content.length();
+        Entry[] stored = new Entry[1];
+
+        entries.computeIfPresent(key, (k, existing) -> share(existing, content, bytes, stored));
+        if(stored[0] != null)
+            return stored[0];
+
+        /* Written outside the map lock, dropped again if an equal content was stored meanwhile */
+        Entry created = newEntry(key, content, bytes);
+        entries.compute(key, (k, existing) -> {
+            if(existing != null)
+                return share(existing, content, bytes, stored);
+
+            created.shared = true;
+            created.refs = 1;
+            stored[0] = created;
+            return created;
+        });
+
+        if(stored[0] != null && stored[0] != created) {
+            forget(created);
+        }
+
+        if(stored[0] != null)
+            return stored[0];
+
+        /* Otherwise another content with the same key, kept apart and not shared */
+        unshared.add(created);
+        return created;
+    }
+
+    /* Takes a reference on existing if it holds content, called in a compute for its key */
+    private Entry share(Entry existing, String content, byte[] bytes, Entry[] stored) {
+        if(holds(existing, content, bytes)) {
+            existing.refs++;
+            stored[0] = existing;
+        }
+        return existing;
+    }
+
+    /* Compresses blobs not read within the cold period, returns how many were compressed */
+    public int compact() {
+        long now = System.nanoTime();
+        int compressed = 0;
+
+        for(Entry entry : entries.values()) {
+            if(compact(entry, now))
+                compressed++;
+        }
+        for(Entry entry : unshared) {
+            if(compact(entry, now))
+                compressed++;
+        }
+
+        return compressed;
+    }
+
+    private boolean compact(Entry entry, long now) {
+        Payload payload = entry.payload;
+        if(payload.inline != null || payload.compressed || entry.incompressible
+                || now - entry.lastRead < coldAfterNanos) {
+            return false;
+        }
+
+        byte[] packed = deflate(payload.bytes());
+        if(packed.length > payload.length - (payload.length >> MIN_SAVING_SHIFT)) {
+            entry.incompressible = true;
+            return false;
+        }
+
+        return swap(entry, payload, append(packed, true));
+    }
+
+    /* Payloads currently stored, each shared by one or more file revisions */
+    public int getDistinctContents() {
+        return entries.size() + unshared.size();
+    }
+
+    /* Heap taken by contents: inline ones and cached decoded blobs */
+    public long getHeapBytes() {
+        return inlineBytes.get() + cache.getBytes();
+    }
+
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    public int getCompressedContents() {
+        return (int) Stream.concat(entries.values().stream(), unshared.stream())
+                .filter(entry -> entry.payload.compressed)
+                .count();
+    }
+
+    /* Size of the segment files on disk */
+    public synchronized long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    private void compactSafely() {
+        try {
+            int compressed = compact();
+            if(compressed > 0) {
+                log.debug("Compressed {} cold blobs", compressed);
+            }
+        } catch (RuntimeException e) {
+            log.error("Blob compaction failed", e);
+        }
+    }
+
+    private String read(Entry entry) {
+        long now = System.nanoTime();
+        if(now - entry.lastRead > TOUCH_GRANULARITY) {
+            entry.lastRead = now;
+        }
+
+        Payload payload = entry.payload;
+        if(payload.inline != null)
+            return payload.inline;
+
+        String cached = cache.get(entry);
+        if(cached != null)
+            return cached;
+
+        byte[] bytes;
+        if(payload.compressed) {
+            /* First read after compaction, keep the content uncompressed while it is being read */
+            bytes = inflate(payload.bytes(), entry.length);
+            swap(entry, payload, append(bytes, false));
+        } else {
+            bytes = payload.bytes();
+        }
+
+        String content = new String(bytes, StandardCharsets.UTF_8);
+        cache.put(entry, content, entry.length, heapMaxBytes - inlineBytes.get());
+
+        /* Freed while it was read, the removal in forget may have run before the put */
+        if(entry.dead) {
+            cache.remove(entry);
+        }
+        return content;
+    }
+
+    /* Decodes the payload as stored: no touch, no cache and a compressed blob stays compressed */
+    private String peek(Entry entry) {
+        Payload payload = entry.payload;
+        if(payload.inline != null)
+            return payload.inline;
+
+        byte[] bytes = payload.compressed ? inflate(payload.bytes(), entry.length) : payload.bytes();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Compares the stored content, bytes holds the UTF-8 encoding of content if the caller has it already */
+    private boolean holds(Entry entry, String content, byte[] bytes) {
+        if(entry.hash != content.hashCode() || entry.chars != content.length())
+            return false;
+
+        Payload payload = entry.payload;
+        if(payload.inline != null)
+            return payload.inline.equals(content);
+
+        /* A recently read blob is already decoded on the heap */
+        String cached = cache.peek(entry);
+        if(cached != null)
+            return cached.equals(content);
+
+        if(bytes != null && bytes.length != entry.length)
+            return false;
+
+        if(bytes == null || payload.compressed)
+            return streamEquals(payload, content);
+
+        ByteBuffer view = payload.segment.buffer.duplicate();
+        view.position(payload.offset);
+        view.limit(payload.offset + payload.length);
+        return view.equals(ByteBuffer.wrap(bytes));
+    }
+
+    /*
+     * Compares the UTF-8 encoding of content with the stored bytes, inflated on the fly if compressed. Both sides
+     * go through small per thread buffers a chunk at a time, neither is copied whole.
+     */
+    private static boolean streamEquals(Payload payload, String content) {
+        Scratch scratch = SCRATCH.get();
+        CharsetEncoder encoder = scratch.encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(content);
+
+        ByteBuffer source = payload.segment.buffer.duplicate();
+        source.position(payload.offset);
+        source.limit(payload.offset + payload.length);
+        if(payload.compressed) {
+            scratch.inflater.reset();
+        }
+
+        byte[] stored = scratch.stored;
+        int position = 0;
+        int limit = 0;
+        boolean encoded = false;
+
+        while(!encoded) {
+            ByteBuffer chunk = scratch.encoded;
+            chunk.clear();
+            encoded = encoder.encode(chars, chunk, true).isUnderflow() && encoder.flush(chunk).isUnderflow();
+            chunk.flip();
+
+            while(chunk.hasRemaining()) {
+                if(position == limit) {
+                    position = 0;
+                    limit = next(payload, source, scratch);
+                    if(limit == 0)
+                        return false;
+                }
+
+                if(chunk.get() != stored[position++])
+                    return false;
+            }
+        }
+
+        return position == limit && next(payload, source, scratch) == 0;
+    }
+
+    /* Fills the stored chunk of the scratch with the next bytes of the payload, 0 at the end */
+    private static int next(Payload payload, ByteBuffer source, Scratch scratch) {
+        if(!payload.compressed) {
+            int length = Math.min(source.remaining(), scratch.stored.length);
+            source.get(scratch.stored, 0, length);
+            return length;
+        }
+
+        Inflater inflater = scratch.inflater;
+        try {
+            while(!inflater.finished()) {
+                if(inflater.needsInput()) {
+                    if(!source.hasRemaining())
+                        return 0;
+
+                    int length = Math.min(source.remaining(), scratch.input.length);
+                    source.get(scratch.input, 0, length);
+                    inflater.setInput(scratch.input, 0, length);
+                }
+
+                int length = inflater.inflate(scratch.stored);
+                if(length > 0)
+                    return length;
+            }
+            return 0;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed blob", e);
+        }
+    }
+
+    /* Replaces the payload unless it changed or the entry was freed meanwhile, the losing payload is freed */
+    private boolean swap(Entry entry, Payload expected, Payload next) {
+        boolean[] swapped = new boolean[1];
+
+        if(entry.shared) {
+            entries.computeIfPresent(entry.key, (k, existing) -> {
+                if(existing == entry && !entry.dead && entry.payload == expected) {
+                    entry.payload = next;
+                    swapped[0] = true;
+                }
+                return existing;
+            });
+        } else {
+            synchronized (entry) {
+                if(!entry.dead && entry.payload == expected) {
+                    entry.payload = next;
+                    swapped[0] = true;
+                }
+            }
+        }
+
+        /* Readers holding the old payload keep reading it, regions are never reused */
+        free(swapped[0] ? expected : next);
+        return swapped[0];
+    }
+
+    private Entry newEntry(long key, String content, byte[] bytes) {
+        if(bytes == null) {
+            inlineBytes.addAndGet(content.length());
+            return new Entry(key, content, content.length(), new Payload(content));
+        }
+        return new Entry(key, content, bytes.length, append(bytes, false));
+    }
+
+    private Payload append(byte[] bytes, boolean compressed) {
+        Segment segment;
+        int offset;
+
+        synchronized (this) {
+            segment = allocate(bytes.length);
+            offset = segment.position;
+            segment.position += bytes.length;
+            segment.live += bytes.length;
+        }
+
+        /* Regions are never shared, the copy runs outside the lock; publishing the file makes it visible to readers */
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+
+        return new Payload(null, segment, offset, bytes.length, compressed);
+    }
+
+    private void release(Entry entry) {
+        if(!entry.shared) {
+            synchronized (entry) {
+                forget(entry);
+            }
+            unshared.remove(entry);
+            return;
+        }
+
+        entries.computeIfPresent(entry.key, (k, existing) -> {
+            if(existing != entry || --existing.refs > 0)
+                return existing;
+
+            forget(existing);
+            return null;
+        });
+    }
+
+    /* Last reference gone, frees the payload and the heap the content took */
+    private void forget(Entry entry) {
+        if(entry.dead)
+            return;
+
+        entry.dead = true;
+        Payload payload = entry.payload;
+        if(payload.inline != null) {
+            inlineBytes.addAndGet(-entry.length);
+        } else {
+            cache.remove(entry);
+            free(payload);
+        }
+    }
+
+    private void free(Payload payload) {
+        if(payload.segment != null) {
+            release(payload.segment, payload.length);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        /* Fastest level, cold text still shrinks several times and compaction stays cheap */
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(bytes.length / 4, 64));
+            byte[] buffer = new byte[8192];
+            while(!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] packed, int length) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(packed);
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while(read < length && !inflater.finished()) {
+                int n = inflater.inflate(bytes, read, length - read);
+                if(n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                read += n;
+            }
+
+            if(read != length)
+                throw new IllegalStateException("Corrupt compressed blob");
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Segment allocate(int length) {
+        if(current != null && current.buffer.capacity() - current.position >= length) {
+            return current;
+        }
+
+        if(current != null) {
+            seal(current);
+        }
+
+        /* A blob larger than a segment gets a segment of its own */
+        current = map(Math.max(segmentSize, length));
+        return current;
+    }
+
+    private Segment map(int size) {
+        try {
+            if(segmentNumber == 0) {
+                Files.createDirectories(dir);
+                clear();
+            }
+
+            Path path = dir.resolve(SEGMENT_PREFIX + ++segmentNumber + SEGMENT_SUFFIX);
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                segmentBytes += size;
+                return new Segment(path, buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Segments left by a previous run, their contents come back from the write-ahead log */
+    private void clear() throws IOException {
+        try(Stream<Path> files = Files.list(dir)) {
+            for(Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private synchronized void release(Segment segment, int length) {
+        segment.live -= length;
+        if(segment.sealed && segment.live == 0) {
+            delete(segment);
+        }
+    }
+
+    private void seal(Segment segment) {
+        segment.sealed = true;
+        if(segment.live == 0) {
+            delete(segment);
+        }
+    }
+
+    /* The mapping stays valid until the buffer is collected, only the directory entry goes away */
+    private void delete(Segment segment) {
+        segmentBytes -= segment.buffer.capacity();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Could not delete blob segment {}", segment.path, e);
+        }
+    }
+}
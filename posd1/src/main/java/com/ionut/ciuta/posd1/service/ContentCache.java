@@ -0,0 +1,138 @@
+package com.ionut.ciuta.posd1.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heap tier over the blob segments: decoded contents of recently read blobs, least recently used first out.
+ * The size budget is passed on each insert since it shrinks as inline contents take their share of the heap.
+ *
+ * Keys are spread over stripes with a lock and an LRU order each, so concurrent hits rarely wait on each other.
+ * Eviction takes the least recently used entry of one stripe after the other, which approximates a global LRU.
+ */
+class ContentCache<K> {
+    private static final int STRIPES = 16;
+
+    private static class Cached {
+        final String content;
+        final int size;
+
+        Cached(String content, int size) {
+            this.content = content;
+            this.size = size;
+        }
+    }
+
+    /* Access ordered, the eldest entry is the least recently used; guarded by the stripe */
+    private final class Stripe {
+        final LinkedHashMap<K, Cached> contents = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private final List<Stripe> stripes = new ArrayList<>(STRIPES);
+    private final AtomicLong bytes = new AtomicLong();
+
+    /* Stripe the next eviction starts at, so no stripe is always emptied first */
+    private final AtomicInteger victim = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ContentCache() {
+        for(int i = 0; i < STRIPES; i++) {
+            stripes.add(new Stripe());
+        }
+    }
+
+    String get(K key) {
+        Stripe stripe = stripe(key);
+        Cached cached;
+        synchronized (stripe) {
+            cached = stripe.contents.get(key);
+        }
+
+        (cached != null ? hits : misses).incrementAndGet();
+        return cached == null ? null : cached.content;
+    }
+
+    /* As get, but not counted as a hit or a miss; for comparisons rather than reads */
+    String peek(K key) {
+        Stripe stripe = stripe(key);
+        Cached cached;
+        synchronized (stripe) {
+            cached = stripe.contents.get(key);
+        }
+        return cached == null ? null : cached.content;
+    }
+
+    void put(K key, String content, int size, long budget) {
+        if(size > budget) {
+            return;
+        }
+
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Cached previous = stripe.contents.put(key, new Cached(content, size));
+            bytes.addAndGet(size - (previous == null ? 0 : previous.size));
+        }
+
+        evict(key, budget);
+    }
+
+    void remove(K key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Cached removed = stripe.contents.remove(key);
+            if(removed != null) {
+                bytes.addAndGet(-removed.size);
+            }
+        }
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /* Drops the eldest entry of each stripe in turn until the cache fits, stops once a whole round found nothing */
+    private void evict(K kept, long budget) {
+        int next = victim.getAndIncrement();
+
+        for(int empty = 0; bytes.get() > budget && empty < STRIPES; next++) {
+            Stripe stripe = stripes.get(next & (STRIPES - 1));
+
+            synchronized (stripe) {
+                Iterator<Map.Entry<K, Cached>> eldest = stripe.contents.entrySet().iterator();
+                Map.Entry<K, Cached> entry = eldest.hasNext() ? eldest.next() : null;
+                if(entry != null && entry.getKey() == kept) {
+                    entry = eldest.hasNext() ? eldest.next() : null;
+                }
+
+                if(entry == null) {
+                    empty++;
+                    continue;
+                }
+
+                bytes.addAndGet(-entry.getValue().size);
+                eldest.remove();
+                empty = 0;
+            }
+        }
+    }
+
+    private Stripe stripe(K key) {
+        int hash = key.hashCode();
+        return stripes.get((hash ^ (hash >>> 16)) & (STRIPES - 1));
+    }
+}
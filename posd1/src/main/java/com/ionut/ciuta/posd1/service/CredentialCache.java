@@ -0,0 +1,146 @@
+package com.ionut.ciuta.posd1.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recently verified credentials so repeated calls skip the user lookup.
+ * Only a salted digest of each pair is kept, never the plain password.
+ * Lookups are lock-free, inserts are serialized so the size bound holds; a full cache drops its oldest entries.
+ * Hits and misses are published as counters, bound to the meter registry like any other binder bean.
+ */
+@Component
+public class CredentialCache implements MeterBinder {
+    private static class Entry {
+        final String user;
+        final byte[] digest;
+        final long expiresAt;
+
+        Entry(String user, byte[] digest, long expiresAt) {
+            this.user = user;
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /* Entries in insertion order, which is expiry order as they all live for the same ttl; guarded by the cache */
+    private final Deque<Entry> order = new ArrayDeque<>();
+
+    private final byte[] salt = new byte[16];
+    private final long ttlNanos;
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public CredentialCache(@Value("${auth.cache.ttl-ms:60000}") long ttlMillis,
+                           @Value("${auth.cache.max-size:10000}") int maxSize) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxSize = maxSize;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public boolean isVerified(String user, String pass) {
+        Entry entry = user == null || pass == null ? null : entries.get(user);
+
+        if(entry == null || entry.expiresAt - System.nanoTime() < 0) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        boolean verified = MessageDigest.isEqual(entry.digest, digest(user, pass));
+        (verified ? hits : misses).incrementAndGet();
+        return verified;
+    }
+
+    public void put(String user, String pass) {
+        if(user == null || pass == null || maxSize <= 0) {
+            return;
+        }
+
+        Entry entry = new Entry(user, digest(user, pass), System.nanoTime() + ttlNanos);
+
+        synchronized (this) {
+            evict(entries.containsKey(user) ? maxSize : maxSize - 1);
+            entries.put(user, entry);
+            order.addLast(entry);
+        }
+    }
+
+    public void invalidate(String user) {
+        entries.remove(user);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        order.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder(OperationMetrics.CREDENTIAL_CACHE, this, CredentialCache::getHits)
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder(OperationMetrics.CREDENTIAL_CACHE, this, CredentialCache::getMisses)
+                .tag("result", "miss")
+                .register(registry);
+    }
+
+    /* Drops expired entries, then the oldest ones until at most limit are left */
+    private void evict(int limit) {
+        long now = System.nanoTime();
+
+        while(!order.isEmpty() && (order.peekFirst().expiresAt - now < 0 || entries.size() > limit)) {
+            Entry oldest = order.pollFirst();
+            entries.remove(oldest.user, oldest);
+        }
+
+        /* Replaced and invalidated entries stay in the order until they come up, drop them if they pile up */
+        if(order.size() > 2 * maxSize) {
+            order.removeIf(entry -> entries.get(entry.user) != entry);
+        }
+    }
+
+    private byte[] digest(String user, String pass) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            md.update(user.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(pass.getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.ionut.ciuta.posd1.model.sql.Role;
 import com.ionut.ciuta.posd1.model.sql.User;
 import com.ionut.ciuta.posd1.repository.RoleRepository;
 import com.ionut.ciuta.posd1.repository.UserRepository;
+import com.ionut.ciuta.posd1.service.RequestTrace.Phase;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
@@ -21,37 +22,62 @@ public class ManagementService {
     @Autowired
     private RoleRepository roleRepository;
 
+    @Autowired
+    private CredentialCache credentialCache;
+
+    @Autowired
+    private PermissionCache permissionCache;
+
+    @Autowired
+    private OperationMetrics metrics;
+
     public void createRole(String user, String pass, String role) {
         if(isRoot(user, pass)) {
-            roleRepository.save(new Role(role, Permission.NONE));
+            RequestTrace.phase(Phase.UPDATE);
+            metrics.time(OperationMetrics.REPOSITORY, "role.save", () -> roleRepository.save(new Role(role, Permission.NONE)));
+            permissionCache.invalidateRole(role);
         }
     }
 
     public void changeRights(String user, String pass, String role, String rights) {
         if(isRoot(user, pass)) {
-            Role dbRole = roleRepository.findByName(role);
+            RequestTrace.phase(Phase.RESOLUTION);
+            Role dbRole = metrics.time(OperationMetrics.REPOSITORY, "role.findByName", () -> roleRepository.findByName(role));
             if(dbRole == null)
                 throw new CustomException(HttpStatus.NOT_FOUND, "Role not found: " + role);
+
+            RequestTrace.phase(Phase.UPDATE);
             dbRole.setPermissions(rights);
-            roleRepository.save(dbRole);
+            metrics.time(OperationMetrics.REPOSITORY, "role.save", () -> roleRepository.save(dbRole));
+            permissionCache.invalidateRole(role);
         }
     }
 
     public void assignRole(String user, String pass, String assignee, String role) {
         if(isRoot(user, pass)) {
-            User dbUser = userRepository.findByName(assignee);
-            Role dbRole = roleRepository.findByName(role);
+            RequestTrace.phase(Phase.RESOLUTION);
+            User dbUser = metrics.time(OperationMetrics.REPOSITORY, "user.findByName", () -> userRepository.findByName(assignee));
+            Role dbRole = metrics.time(OperationMetrics.REPOSITORY, "role.findByName", () -> roleRepository.findByName(role));
             if(dbUser == null)
                 throw new CustomException(HttpStatus.NOT_FOUND, "User not found: " + assignee);
             if(dbRole == null)
                 throw new CustomException(HttpStatus.NOT_FOUND, "Role not found: " + role);
+
+            RequestTrace.phase(Phase.UPDATE);
             dbUser.getRoles().add(dbRole);
-            userRepository.save(dbUser);
+            metrics.time(OperationMetrics.REPOSITORY, "user.save", () -> userRepository.save(dbUser));
+            credentialCache.invalidate(assignee);
+            permissionCache.invalidate(assignee);
         }
     }
 
+    /* Root is authenticated by its fixed credentials and is the only user allowed to manage roles */
     private boolean isRoot(String user, String pass) {
-        if(!user.equals("root") || !pass.equals("root"))
+        RequestTrace.phase(Phase.AUTHENTICATION);
+        boolean root = user.equals("root") && pass.equals("root");
+
+        RequestTrace.phase(Phase.AUTHORIZATION);
+        if(!root)
             throw new ResourceOperationNotPermitted();
         return true;
     }
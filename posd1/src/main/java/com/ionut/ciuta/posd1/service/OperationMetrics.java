@@ -0,0 +1,87 @@
+package com.ionut.ciuta.posd1.service;
+
+import com.ionut.ciuta.posd1.exception.ExceptionWithStatusCode;
+import com.ionut.ciuta.posd1.exception.ResourceInConflict;
+import com.ionut.ciuta.posd1.exception.ResourceNotFound;
+import com.ionut.ciuta.posd1.exception.ResourceOperationNotPermitted;
+import com.ionut.ciuta.posd1.exception.UnauthorizedUser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Latency timers per operation and outcome, published with percentile histograms.
+ */
+@Component
+public class OperationMetrics {
+    public static final String RESOURCE = "posd.resource";
+    public static final String AUTH = "posd.auth";
+    public static final String REPOSITORY = "posd.repository";
+    public static final String CREDENTIAL_CACHE = "posd.auth.credential_cache";
+
+    public static final String OK = "ok";
+    public static final String NOT_FOUND = "not_found";
+    public static final String FORBIDDEN = "forbidden";
+    public static final String UNAUTHORIZED = "unauthorized";
+    public static final String CONFLICT = "conflict";
+    public static final String ERROR = "error";
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public OperationMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /* Times the call, the outcome tag follows from the exception it throws */
+    public <T> T time(String name, String operation, Supplier<T> call) {
+        long start = System.nanoTime();
+        String outcome = ERROR;
+        try {
+            T result = call.get();
+            outcome = OK;
+            return result;
+        } catch (RuntimeException e) {
+            outcome = outcomeOf(e);
+            throw e;
+        } finally {
+            record(name, operation, outcome, System.nanoTime() - start);
+        }
+    }
+
+    public void time(String name, String operation, Runnable call) {
+        time(name, operation, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    public void record(String name, String operation, String outcome, long nanos) {
+        timers.computeIfAbsent(name + '|' + operation + '|' + outcome, key ->
+                Timer.builder(name)
+                        .tag("operation", operation)
+                        .tag("outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(registry)
+        ).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private String outcomeOf(RuntimeException e) {
+        if(e instanceof ResourceNotFound)
+            return NOT_FOUND;
+        if(e instanceof ResourceOperationNotPermitted)
+            return FORBIDDEN;
+        if(e instanceof UnauthorizedUser)
+            return UNAUTHORIZED;
+        if(e instanceof ResourceInConflict)
+            return CONFLICT;
+        if(e instanceof ExceptionWithStatusCode)
+            return ((ExceptionWithStatusCode) e).status.name().toLowerCase();
+        return ERROR;
+    }
+}
@@ -0,0 +1,64 @@
+package com.ionut.ciuta.posd1.service;
+
+import com.ionut.ciuta.posd1.model.EffectivePermissions;
+import com.ionut.ciuta.posd1.model.sql.Role;
+import com.ionut.ciuta.posd1.model.sql.User;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per user compiled role permissions, so permission checks do not go back to the database.
+ * Entries are dropped by {@link ManagementService} whenever users or roles change. Every drop moves the generation
+ * on, an entry loaded before a drop is not cached since it may hold the old roles.
+ */
+@Component
+public class PermissionCache {
+    private final Map<String, EffectivePermissions> permissions = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    public EffectivePermissions get(String user) {
+        return permissions.get(user);
+    }
+
+    /* Read before loading a user, the load is handed to put along with it */
+    public long generation() {
+        return generation.get();
+    }
+
+    /* Compiles the user's roles; they are only cached if nothing was invalidated since the given generation */
+    public EffectivePermissions put(User user, long loadedAt) {
+        Map<String, Integer> roles = new HashMap<>();
+        for(Role role : user.getRoles()) {
+            roles.put(role.getName(), role.getPermissionMask());
+        }
+
+        EffectivePermissions result = new EffectivePermissions(roles);
+        permissions.put(user.getName(), result);
+
+        /* Invalidations move the generation before they remove, one that missed this entry is seen here */
+        if(generation.get() != loadedAt) {
+            permissions.remove(user.getName(), result);
+        }
+        return result;
+    }
+
+    public void invalidate(String user) {
+        generation.incrementAndGet();
+        permissions.remove(user);
+    }
+
+    /* Drops every user holding the role, so the next check picks up its new permissions */
+    public void invalidateRole(String role) {
+        generation.incrementAndGet();
+        permissions.values().removeIf(userPermissions -> userPermissions.hasRole(role));
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        permissions.clear();
+    }
+}
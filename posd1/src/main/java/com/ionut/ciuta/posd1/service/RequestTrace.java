@@ -0,0 +1,94 @@
+package com.ionut.ciuta.posd1.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock breakdown of a single request into phases. The trace is bound to the request thread,
+ * calls to {@link #phase(Phase)} outside of a traced request do nothing.
+ */
+public class RequestTrace {
+    public enum Phase {
+        DISPATCH, AUTHENTICATION, RESOLUTION, AUTHORIZATION, RENDERING, UPDATE, RESPONSE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final ThreadLocal<RequestTrace> current = new ThreadLocal<>();
+
+    private final String request;
+    private final long startedAt;
+    private final long start;
+    private final long[] elapsed = new long[PHASES.length];
+    private Phase phase = Phase.DISPATCH;
+    private long mark;
+    private long total;
+
+    private RequestTrace(String request) {
+        this.request = request;
+        this.startedAt = System.currentTimeMillis();
+        this.start = System.nanoTime();
+        this.mark = start;
+    }
+
+    public static RequestTrace begin(String request) {
+        RequestTrace trace = new RequestTrace(request);
+        current.set(trace);
+        return trace;
+    }
+
+    /* Closes the phase in progress and starts timing the given one */
+    public static void phase(Phase phase) {
+        RequestTrace trace = current.get();
+        if(trace != null)
+            trace.switchTo(phase, System.nanoTime());
+    }
+
+    public static RequestTrace end() {
+        RequestTrace trace = current.get();
+        current.remove();
+        if(trace != null) {
+            long now = System.nanoTime();
+            trace.switchTo(trace.phase, now);
+            trace.total = now - trace.start;
+        }
+        return trace;
+    }
+
+    private void switchTo(Phase next, long now) {
+        elapsed[phase.ordinal()] += now - mark;
+        phase = next;
+        mark = now;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getTotalMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(total);
+    }
+
+    public long getTotal(TimeUnit unit) {
+        return unit.convert(total, TimeUnit.NANOSECONDS);
+    }
+
+    /* Microseconds spent in each phase the request went through */
+    public Map<String, Long> getPhases() {
+        Map<String, Long> phases = new LinkedHashMap<>();
+        for(Phase p : PHASES) {
+            if(elapsed[p.ordinal()] > 0)
+                phases.put(p.name().toLowerCase(), TimeUnit.NANOSECONDS.toMicros(elapsed[p.ordinal()]));
+        }
+        return phases;
+    }
+
+    @Override
+    public String toString() {
+        return request + " took " + getTotalMicros() + "us " + getPhases();
+    }
+}
@@ -1,11 +1,17 @@
 package com.ionut.ciuta.posd1.service;
 
+import com.ionut.ciuta.posd1.Values;
+import com.ionut.ciuta.posd1.exception.CustomException;
+import com.ionut.ciuta.posd1.exception.PreconditionFailed;
 import com.ionut.ciuta.posd1.exception.ResourceInConflict;
 import com.ionut.ciuta.posd1.exception.ResourceNotFound;
 import com.ionut.ciuta.posd1.exception.ResourceOperationNotPermitted;
 import com.ionut.ciuta.posd1.exception.UnauthorizedUser;
 import com.ionut.ciuta.posd1.model.*;
+import com.ionut.ciuta.posd1.repository.RoleRepository;
+import com.ionut.ciuta.posd1.service.RequestTrace.Phase;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -16,29 +22,77 @@ public class ResourceAccessService {
     @Autowired
     private ResourceService resourceService;
 
+    @Autowired
+    private AuditLog auditLog;
+
+    @Autowired
+    private OperationMetrics metrics;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private RoleRepository roleRepository;
+
     public String read(String user, String pass, String file) {
+        return readRevision(user, pass, file).content;
+    }
+
+    /* Content along with the version to send back as expected version on write, files only are versioned */
+    public Revision readRevision(String user, String pass, String file) {
+        return metrics.time(OperationMetrics.RESOURCE, "read", () -> doRead(user, pass, file));
+    }
+
+    public long write(String user, String pass, String filename, String newContent) {
+        return write(user, pass, filename, newContent, File.ANY_VERSION);
+    }
+
+    /* Compare-and-set write: fails with PreconditionFailed unless the file is still at one of expectedVersions */
+    public long write(String user, String pass, String filename, String newContent, long... expectedVersions) {
+        return metrics.time(OperationMetrics.RESOURCE, "write",
+                () -> doWrite(user, pass, filename, newContent, expectedVersions));
+    }
+
+    public void addRights(String user, String pass, String name, String role) {
+        metrics.time(OperationMetrics.RESOURCE, "add_rights", () -> doAddRights(user, pass, name, role));
+    }
+
+    public void create(String user, String pass, String name, String content) {
+        metrics.time(OperationMetrics.RESOURCE, "create", () -> doCreate(user, pass, name, content));
+    }
+
+    private Revision doRead(String user, String pass, String file) {
+        RequestTrace.phase(Phase.AUTHENTICATION);
         if(!authService.isAuthenticated(user, pass)) {
             throw new UnauthorizedUser();
         }
 
+        RequestTrace.phase(Phase.RESOLUTION);
         Resource resource = resourceService.find(file);
 
         if(resource == null) {
             throw new ResourceNotFound();
         }
 
-        if(authService.isOwner(user, resource) || authService.canRead(user, resource)) {
+        RequestTrace.phase(Phase.AUTHORIZATION);
+        boolean allowed = authService.isOwner(user, resource) || authService.canRead(user, resource);
+        auditLog.record(user, file, Permission.R, allowed);
+
+        if(allowed) {
+            RequestTrace.phase(Phase.RENDERING);
             return getContent(resource);
         } else {
             throw new ResourceOperationNotPermitted();
         }
     }
 
-    public void write(String user, String pass, String filename, String newContent) {
+    private long doWrite(String user, String pass, String filename, String newContent, long[] expectedVersions) {
+        RequestTrace.phase(Phase.AUTHENTICATION);
         if(!authService.isAuthenticated(user, pass)) {
             throw new UnauthorizedUser();
         }
 
+        RequestTrace.phase(Phase.RESOLUTION);
         Resource resource = resourceService.find(filename);
 
         if(resource == null || resource.type != Resource.Type.FILE) {
@@ -47,20 +101,44 @@ public class ResourceAccessService {
 
         File file = (File)resource;
 
-        if(authService.isOwner(user, file) || authService.canWrite(user, file)) {
-            file.content = newContent;
+        RequestTrace.phase(Phase.AUTHORIZATION);
+        boolean allowed = authService.isOwner(user, file) || authService.canWrite(user, file);
+        auditLog.record(user, filename, Permission.W, allowed);
+
+        if(allowed) {
+            RequestTrace.phase(Phase.UPDATE);
+            File written = (File) resourceService.update(filename, current -> {
+                if(!current.isFile()) {
+                    throw new ResourceNotFound();
+                }
+
+                File currentFile = (File) current;
+                if(!currentFile.isAtVersion(expectedVersions)) {
+                    throw new PreconditionFailed();
+                }
+
+                /* Same content: nothing is stored, published or logged and the version stays */
+                if(currentFile.getHandle().contentEquals(newContent)) {
+                    return current;
+                }
+
+                /* Storing again on a retry only adds a reference to the entry stored by the previous attempt */
+                return currentFile.withContent(blobStore.store(newContent));
+            }, Mutation.write(filename, newContent));
+
+            return written.getVersion();
         } else {
             throw new ResourceOperationNotPermitted();
         }
     }
 
-    private String getContent(Resource resource) {
+    private Revision getContent(Resource resource) {
         switch (resource.type) {
             case Resource.Type.FOLDER:
-                return getFolderContent((Folder)resource);
+                return new Revision(getFolderContent((Folder)resource), Revision.UNVERSIONED);
 
             case Resource.Type.FILE:
-                return ((File)resource).content;
+                return ((File)resource).getRevision();
 
             default:
                 throw new UnsupportedOperationException();
@@ -70,7 +148,7 @@ public class ResourceAccessService {
     private String getFolderContent(Folder folder) {
         StringBuilder sb = new StringBuilder();
 
-        folder.content.forEach(r -> {
+        folder.getContent().forEach(r -> {
             switch (r.type) {
                 case Resource.Type.FILE:
                     sb.append(((File)r).name);
@@ -87,19 +165,33 @@ public class ResourceAccessService {
         return sb.toString().trim();
     }
 
-    public void addRights(String user, String pass, String name, String role) {
+    private void doAddRights(String user, String pass, String name, String role) {
+        RequestTrace.phase(Phase.AUTHENTICATION);
         if(!authService.isAuthenticated(user, pass)) {
             throw new UnauthorizedUser();
         }
 
+        RequestTrace.phase(Phase.RESOLUTION);
         Resource resource = resourceService.find(name);
 
         if(resource == null) {
             throw new ResourceNotFound();
         }
 
-        if(authService.isOwner(user, resource)) {
-            resource.acl.add(role);
+        RequestTrace.phase(Phase.AUTHORIZATION);
+        boolean allowed = authService.isOwner(user, resource);
+        auditLog.record(user, name, Values.OWNER, allowed);
+
+        if(allowed) {
+            /* Only roles that exist go on an Acl, any other name would take up a role id for good */
+            if(metrics.time(OperationMetrics.REPOSITORY, "role.findByName", () -> roleRepository.findByName(role)) == null) {
+                throw new CustomException(HttpStatus.NOT_FOUND, "Role not found: " + role);
+            }
+
+            RequestTrace.phase(Phase.UPDATE);
+            resourceService.update(name, current ->
+                    current.acl.contains(role) ? current : current.withAcl(current.acl.with(role)),
+                    Mutation.addRights(name, role));
         } else {
             throw new ResourceOperationNotPermitted();
         }
@@ -108,10 +200,12 @@ public class ResourceAccessService {
     /* This has no real impact in the current implementation */
     @Deprecated(since = "HW2")
     public void changeRights(String user, String pass, String name, String permissions) {
+        RequestTrace.phase(Phase.AUTHENTICATION);
         if(!authService.isAuthenticated(user, pass)) {
             throw new UnauthorizedUser();
         }
 
+        RequestTrace.phase(Phase.RESOLUTION);
         Resource resource = resourceService.find(name);
 
         if(resource == null) {
@@ -123,31 +217,44 @@ public class ResourceAccessService {
         }
     }
 
-    public void create(String user, String pass, String name, String content) {
+    private void doCreate(String user, String pass, String name, String content) {
+        RequestTrace.phase(Phase.AUTHENTICATION);
         if(!authService.isAuthenticated(user, pass)) {
             throw new UnauthorizedUser();
         }
 
-        Resource resource = resourceService.findRootForFile(name);
+        while(!tryCreate(user, name, content)) {
+            /* Another writer published a new version of the hook meanwhile, resolve again on the updated tree */
+        }
+    }
 
-        if(resource == null) {
+    private boolean tryCreate(String user, String name, String content) {
+        RequestTrace.phase(Phase.RESOLUTION);
+        InsertionPoint insertionPoint = resourceService.resolve(name);
+
+        if(insertionPoint.root == null) {
             throw new ResourceNotFound();
         }
 
-        if(resourceService.exists(name)) {
+        if(insertionPoint.exists) {
             throw new ResourceInConflict();
         } else {
-            InsertionPoint insertionPoint = resourceService.findParent(name, resource);
             Folder hook = insertionPoint.hook;
 
-            if(authService.isOwner(user, hook) || authService.canWrite(user, hook)) {
+            RequestTrace.phase(Phase.AUTHORIZATION);
+            boolean allowed = authService.isOwner(user, hook) || authService.canWrite(user, hook);
+            auditLog.record(user, name, Permission.W, allowed);
+
+            if(allowed) {
+                RequestTrace.phase(Phase.UPDATE);
                 Resource newNode = resourceService.createResourceFromPath(
                         insertionPoint.chain,
                         content,
                         user,
                         hook.acl
                 );
-                insertionPoint.hook.content.add(newNode);
+
+                return resourceService.attach(name, insertionPoint, newNode, Mutation.create(name, content, user));
             } else {
                 throw new ResourceOperationNotPermitted();
             }
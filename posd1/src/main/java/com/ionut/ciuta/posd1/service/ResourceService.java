@@ -1,14 +1,21 @@
 package com.ionut.ciuta.posd1.service;
 
+import com.ionut.ciuta.posd1.exception.ExceptionWithStatusCode;
 import com.ionut.ciuta.posd1.exception.ResourceNotFound;
 import com.ionut.ciuta.posd1.model.File;
 import com.ionut.ciuta.posd1.model.Folder;
 import com.ionut.ciuta.posd1.model.InsertionPoint;
+import com.ionut.ciuta.posd1.model.Mutation;
 import com.ionut.ciuta.posd1.model.Resource;
+import com.ionut.ciuta.posd1.model.ResourcePath;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -16,100 +23,348 @@ import org.springframework.stereotype.Service;
  * ionutciuta24@gmail.com on 26.10.2017.
  */
 @Service
-public class ResourceService {
+public class ResourceService implements InitializingBean {
+    private static final Logger log = LoggerFactory.getLogger(ResourceService.class);
 
     @Autowired
     private Storage storage;
 
+    @Autowired
+    private WriteAheadLog writeAheadLog;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    /* Held to stage a logged change and queue its record, so the log receives records in version order */
+    private final Object commitLock = new Object();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        writeAheadLog.recover(this::apply);
+    }
+
     public boolean exists(String name) {
-        List<String> path = getPath(name);
-        Resource resource = storage.getResource(path.get(0));
+        ResourcePath path = ResourcePath.of(name);
+        if(storage.getIndexedResource(path.key()) != null) {
+            return true;
+        }
+
+        Resource resource = storage.getResource(path.root());
         return resource != null && findResource(path, resource) != null;
     }
 
     public Resource find(String name) {
-        List<String> path = getPath(name);
-        Resource resource = storage.getResource(path.get(0));
+        ResourcePath path = ResourcePath.of(name);
+        Resource indexed = storage.getIndexedResource(path.key());
+        if(indexed != null) {
+            return indexed;
+        }
+
+        Resource resource = storage.getResource(path.root());
         return findResource(path, resource);
     }
 
     public Resource findRootForFile(String name) {
-        List<String> path = getPath(name);
-        return storage.getResource(path.get(0));
+        return storage.getResource(ResourcePath.of(name).root());
     }
 
-    private Resource findResource(List<String> segments, Resource resource)  {
-        /* If there are no more segments to explore, the resource could not be found */
+    private Resource findResource(ResourcePath path, Resource resource)  {
+        /* If there is no root to start from, the resource could not be found */
         if(resource == null) {
             throw new ResourceNotFound();
         }
 
-        if(segments.isEmpty()) {
-            return null;
+        TraversalEvent event = new TraversalEvent();
+        event.begin();
+
+        Resource current = resource;
+        Resource match = null;
+        int last = path.size() - 1;
+        int visited = 0;
+
+        /* Stops with no match when there are no segments to explore or a child is missing */
+        for(int i = 0; i <= last && current != null; i++) {
+            visited++;
+
+            /* A file or the last segment ends the search, the name decides the match */
+            if(current.isFile() || i == last) {
+                match = path.get(i).equals(current.name) ? current : null;
+                break;
+            }
+
+            /* Descend into the only child that can match the next segment */
+            current = ((Folder) current).get(path.get(i + 1));
         }
 
-        /* Current segment */
-        String segment = segments.remove(0);
+        event.commit("find", path.key(), path.size(), visited, match != null);
+        return match;
+    }
+
+    /* Consistent read: resolves name against the given version of the tree only */
+    public Resource find(Storage.Snapshot snapshot, String name) {
+        ResourcePath path = ResourcePath.of(name);
+        return findResource(path, snapshot.getResource(path.root()));
+    }
+
+    /*
+     * Publishes node under the insertion point hook. Fails when the hook changed since it was resolved,
+     * the caller then resolves again.
+     */
+    public boolean attach(String name, InsertionPoint insertionPoint, Resource node) {
+        return attach(name, insertionPoint, node, null);
+    }
+
+    /* As above, the node is only published once the mutation is in the write-ahead log */
+    public boolean attach(String name, InsertionPoint insertionPoint, Resource node, Mutation mutation) {
+        ResourcePath path = ResourcePath.of(name);
+        List<String> hookPath = path.segments().subList(0, path.size() - insertionPoint.chain.size());
+
+        Storage.Snapshot base = storage.head();
+        List<Resource> nodes = walk(base, hookPath);
+
+        /* Published folders are immutable, the same hook means the chain is still missing */
+        if(nodes == null || nodes.get(nodes.size() - 1) != insertionPoint.hook) {
+            return false;
+        }
 
-        if(resource.isFolder()) {
-            /* If it's the last folder and it has the correct name, then return it*/
-            if(segment.equals(resource.name) && segments.isEmpty()) {
-                    return resource;
+        List<Resource> copies = copyPath(nodes, insertionPoint.hook.with(node));
+        Storage.Snapshot published = commit(base, path.root(), copies.get(0), mutation);
+
+        if(published == null) {
+            return false;
+        }
+
+        index(hookPath, copies, published.version);
+        index(path.segments(), insertionPoint.chain, node, published.version);
+        return true;
+    }
+
+    /*
+     * Copy-on-write change of the resource at name. The change is applied to the resource as of a snapshot
+     * and retried on a fresh one when another writer published first, so it must not have side effects.
+     * Returns the published resource.
+     */
+    public Resource update(String name, UnaryOperator<Resource> change) {
+        return update(name, change, null);
+    }
+
+    /* As above, the replacement is only published once the mutation is in the write-ahead log */
+    public Resource update(String name, UnaryOperator<Resource> change, Mutation mutation) {
+        ResourcePath path = ResourcePath.of(name);
+
+        while(true) {
+            Storage.Snapshot base = storage.head();
+            List<Resource> nodes = walk(base, path.segments());
+
+            if(nodes == null) {
+                throw new ResourceNotFound();
             }
 
-            /* Not all criteria were matched so we explore subfolders */
-            List<Resource> results =
-                    ((Folder) resource).content.stream()
-                            .map(r -> findResource(new ArrayList<>(segments), r))
-                            .filter(Objects::nonNull)
-                            .collect(Collectors.toList());
+            Resource current = nodes.get(nodes.size() - 1);
+            Resource replacement = change.apply(current);
+
+            if(replacement == current) {
+                return current;
+            }
 
-            /* Return null is nothing matched the search */
-            return results.isEmpty() ? null : results.get(0);
+            List<Resource> copies = copyPath(nodes, replacement);
+            Storage.Snapshot published = commit(base, path.root(), copies.get(0), mutation);
 
-        } else {
-            /* If we search for a file and the name is a match, return it*/
-            if(segment.equals(resource.name)) {
-                return resource;
-            } else {
-                return null;
+            if(published != null) {
+                index(path.segments(), copies, published.version);
+                return replacement;
             }
         }
     }
 
+    /*
+     * Stages base with the root replaced and waits for the write-ahead log to make the mutation durable and reveal it.
+     * Null when another writer staged first: nothing was logged, so a retry does not leave a duplicate record.
+     * Unlogged changes, which only replay makes, are revealed right away.
+     */
+    private Storage.Snapshot commit(Storage.Snapshot base, String root, Resource resource, Mutation mutation) {
+        if(mutation == null) {
+            return storage.publish(base, root, resource);
+        }
 
-    public List<String> getPath(String name) {
-        return new ArrayList<>(Arrays.asList(name
-                .replace('/', ' ')
-                .trim()
-                .split(" ")
-        ));
+        Storage.Snapshot staged;
+        CompletableFuture<Void> durable;
+        synchronized (commitLock) {
+            staged = storage.stage(base, root, resource);
+            if(staged == null) {
+                return null;
+            }
+
+            try {
+                durable = writeAheadLog.submit(mutation, staged);
+            } catch (RuntimeException e) {
+                storage.unstage(base, staged);
+                throw e;
+            }
+        }
+
+        writeAheadLog.await(durable);
+        return staged;
     }
 
-    public InsertionPoint findParent(String file, Resource rootFolder) {
-        List<String> segments = getPath(file);
-        List<Resource> resources = Collections.singletonList(rootFolder);
+    /* Replays a logged mutation, it was authorized when first applied */
+    void apply(Mutation mutation) {
+        try {
+            switch (mutation.type) {
+                case Mutation.Type.CREATE:
+                    InsertionPoint insertionPoint;
+                    do {
+                        insertionPoint = resolve(mutation.path);
+                        if(insertionPoint.root == null || insertionPoint.exists) {
+                            log.warn("Skipping replayed create of {}, already present or no root", mutation.path);
+                            return;
+                        }
+                    } while(!attach(mutation.path, insertionPoint, createResourceFromPath(
+                            insertionPoint.chain, mutation.content, mutation.user, insertionPoint.hook.acl)));
+                    break;
 
-        Folder parent = null;
-        boolean match;
-        int i = 0;
+                case Mutation.Type.WRITE:
+                    update(mutation.path, current ->
+                            current.isFile() ? ((File) current).withContent(blobStore.store(mutation.content)) : current);
+                    break;
 
-        for(; i < segments.size(); i++) {
-            match = false;
-            for(Resource resource : resources) {
-                if(resource.name.equals(segments.get(i)) && resource.isFolder()) {
-                    parent = (Folder) resource;
-                    resources = parent.content;
-                    match = true;
+                case Mutation.Type.ADD_RIGHTS:
+                    update(mutation.path, current ->
+                            current.acl.contains(mutation.role) ? current : current.withAcl(current.acl.with(mutation.role)));
                     break;
+
+                default:
+                    log.warn("Skipping replayed mutation of unknown type {}", mutation.type);
+            }
+        } catch (ExceptionWithStatusCode e) {
+            log.warn("Skipping replayed mutation of {}: {}", mutation.path, e.text);
+        }
+    }
+
+    /* Nodes from the root down to the one at segments, null if the path does not exist in the snapshot */
+    private List<Resource> walk(Storage.Snapshot snapshot, List<String> segments) {
+        List<Resource> nodes = new ArrayList<>(segments.size());
+        Resource current = snapshot.getResource(segments.get(0));
+
+        for(int i = 0; i < segments.size(); i++) {
+            if(current == null || !current.name.equals(segments.get(i))) {
+                return null;
+            }
+
+            nodes.add(current);
+
+            if(i < segments.size() - 1) {
+                if(!current.isFolder()) {
+                    return null;
                 }
+                current = ((Folder) current).get(segments.get(i + 1));
+            }
+        }
+
+        return nodes;
+    }
+
+    /* New versions of the ancestors of the replaced node, siblings and untouched subtrees are shared */
+    private List<Resource> copyPath(List<Resource> nodes, Resource replacement) {
+        Resource[] copies = new Resource[nodes.size()];
+        copies[copies.length - 1] = replacement;
+
+        for(int i = copies.length - 2; i >= 0; i--) {
+            copies[i] = ((Folder) nodes.get(i)).with(copies[i + 1]);
+        }
+
+        return Arrays.asList(copies);
+    }
+
+    /* Registers the published copies along a path in the storage path index */
+    private void index(List<String> segments, List<Resource> copies, long version) {
+        StringBuilder key = new StringBuilder();
+
+        for(int i = 0; i < copies.size(); i++) {
+            if(i > 0) {
+                key.append('/');
+            }
+
+            key.append(segments.get(i));
+            storage.indexResource(key.toString(), copies.get(i), version);
+        }
+    }
+
+    /* Registers a newly inserted node and the folders created under it */
+    private void index(List<String> path, List<String> chain, Resource node, long version) {
+        StringBuilder key = new StringBuilder(String.join("/", path.subList(0, path.size() - chain.size())));
+        Resource resource = node;
+
+        for(int i = 0; i < chain.size(); i++) {
+            /* The created chain is linear, each folder holds only the next segment */
+            if(i > 0) {
+                resource = ((Folder) resource).get(chain.get(i));
             }
 
-            if(!match) {
+            if(resource == null) {
                 break;
             }
+
+            key.append('/').append(chain.get(i));
+            storage.indexResource(key.toString(), resource, version);
+        }
+    }
+
+    public List<String> getPath(String name) {
+        return ResourcePath.of(name).segments();
+    }
+
+    public InsertionPoint findParent(String file, Resource rootFolder) {
+        return findParent(ResourcePath.of(file).segments(), rootFolder);
+    }
+
+    /* Single walk for create: root, deepest existing folder, chain left to build and conflict flag */
+    public InsertionPoint resolve(String name) {
+        ResourcePath path = ResourcePath.of(name);
+        /* Resolved against the staged tree, attach checks the hook against it */
+        Resource root = storage.getStagedResource(path.root());
+
+        if(root == null) {
+            return new InsertionPoint(null, null, path.segments(), false);
+        }
+
+        if(storage.getIndexedResource(path.key()) != null) {
+            return new InsertionPoint(root, null, Collections.emptyList(), true);
+        }
+
+        InsertionPoint insertionPoint = findParent(path.segments(), root);
+        insertionPoint.root = root;
+
+        if(insertionPoint.chain.isEmpty()) {
+            insertionPoint.exists = true;
+        } else {
+            /* The walk stops at folders only, a file matching the next segment is a conflict too */
+            String next = insertionPoint.chain.get(0);
+            Resource blocker = insertionPoint.hook == null ? null : insertionPoint.hook.get(next);
+            insertionPoint.exists = blocker != null && blocker.isFile();
+        }
+
+        return insertionPoint;
+    }
+
+    private InsertionPoint findParent(List<String> segments, Resource rootFolder) {
+        TraversalEvent event = new TraversalEvent();
+        event.begin();
+
+        Folder parent = null;
+        Resource candidate = rootFolder;
+        int i = 0;
+
+        while(i < segments.size()
+                && candidate != null
+                && candidate.isFolder()
+                && candidate.name.equals(segments.get(i))) {
+            parent = (Folder) candidate;
+            i++;
+            candidate = i < segments.size() ? parent.get(segments.get(i)) : null;
         }
 
+        event.commit("findParent", String.join("/", segments), segments.size(), i, i == segments.size());
         return new InsertionPoint(parent, segments.subList(i, segments.size()));
     }
 
@@ -133,7 +388,7 @@ public class ResourceService {
         for (; i < path.size() - 1; i++) {
             Folder newFolder = new Folder(path.get(i), owner, acl);
             if (resource != null) {
-                ((Folder) resource).content.add(newFolder);
+                ((Folder) resource).add(newFolder);
             }
             resource = newFolder;
         }
@@ -142,13 +397,13 @@ public class ResourceService {
         if (type == Resource.Type.FOLDER) {
             newResource = new Folder(path.get(i), owner, acl);
         } else {
-            newResource = new File(path.get(i), content, owner, acl);
+            newResource = new File(path.get(i), blobStore.store(content), owner, acl);
         }
 
         if (hook == null) {
             hook = newResource;
         } else {
-            ((Folder) resource).content.add(newResource);
+            ((Folder) resource).add(newResource);
         }
 
         return hook;
@@ -0,0 +1,54 @@
+package com.ionut.ciuta.posd1.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the most recent requests that went over the slow threshold, newest first.
+ * Exposed through the slowrequests actuator endpoint.
+ */
+@Component
+@Endpoint(id = "slowrequests")
+public class SlowRequestLog {
+    private static final Logger log = LoggerFactory.getLogger(SlowRequestLog.class);
+
+    private final long thresholdNanos;
+    private final int capacity;
+    private final Deque<RequestTrace> traces = new ArrayDeque<>();
+
+    public SlowRequestLog(@Value("${trace.slow-threshold-ms:500}") long thresholdMs,
+                          @Value("${trace.slow-capacity:100}") int capacity) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        this.capacity = capacity;
+    }
+
+    public void record(RequestTrace trace) {
+        if(trace == null || trace.getTotal(TimeUnit.NANOSECONDS) < thresholdNanos)
+            return;
+
+        log.warn("Slow request: {}", trace);
+
+        synchronized (traces) {
+            traces.addFirst(trace);
+            if(traces.size() > capacity)
+                traces.removeLast();
+        }
+    }
+
+    @ReadOperation
+    public List<RequestTrace> recent() {
+        synchronized (traces) {
+            return new ArrayList<>(traces);
+        }
+    }
+}
@@ -7,18 +7,63 @@ import com.ionut.ciuta.posd1.model.Resource;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * ionutciuta24@gmail.com on 25.10.2017.
  */
 @Component
 public class Storage implements InitializingBean {
+    /**
+     * Immutable version of the whole resource tree. Nodes reachable from a snapshot are never changed,
+     * a writer copies the path from the root to the node it changes and publishes the result as a new snapshot.
+     */
+    public static final class Snapshot {
+        public final long version;
+        private final Map<String, Resource> roots;
+
+        private Snapshot(long version, Map<String, Resource> roots) {
+            this.version = version;
+            this.roots = roots;
+        }
+
+        public Resource getResource(String root) {
+            return roots.get(root);
+        }
+
+        public Map<String, Resource> getResources() {
+            return roots;
+        }
+
+        private Snapshot with(String root, Resource resource) {
+            Map<String, Resource> next = new HashMap<>(roots);
+            next.put(root, resource);
+            return new Snapshot(version + 1, Collections.unmodifiableMap(next));
+        }
+    }
+
+    private static final class Indexed {
+        final long version;
+        final Resource resource;
+
+        Indexed(long version, Resource resource) {
+            this.version = version;
+            this.resource = resource;
+        }
+    }
+
     private Map<String, String> users = new ConcurrentHashMap<>();
 
-    private Map<String, Resource> resources = new ConcurrentHashMap<>();
+    /* Newest version readers see; head is the newest one staged by a writer, ahead of current until it is durable */
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(0, Collections.emptyMap()));
+    private final AtomicReference<Snapshot> head = new AtomicReference<>(current.get());
+
+    /* Full path (segments joined by '/') -> resource as of the newest snapshot indexed, for lookups that skip the tree walk */
+    private Map<String, Indexed> index = new ConcurrentHashMap<>();
 
     public boolean isUser(String user) {
         return users.containsKey(user);
@@ -33,15 +78,84 @@ public class Storage implements InitializingBean {
     }
 
     public boolean hasResource(String user) {
-        return users.containsKey(user) && resources.get(user) != null;
+        return users.containsKey(user) && getResource(user) != null;
     }
 
     public Resource getResource(String user) {
-        return resources.get(user);
+        return current.get().getResource(user);
+    }
+
+    /* Lock-free read of the current version of the tree */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /* Newest version of the tree including staged changes, writers build on this one */
+    public Snapshot head() {
+        return head.get();
+    }
+
+    public Resource getStagedResource(String root) {
+        return head.get().getResource(root);
     }
 
     public void addResource(String user, Resource resource) {
-        resources.put(user, resource);
+        Snapshot published;
+        do {
+            published = publish(head.get(), user, resource);
+        } while(published == null);
+
+        indexResource(resource.name, resource, published.version);
+    }
+
+    /* Stages and reveals at once, for changes that need not be durable before readers see them */
+    public Snapshot publish(Snapshot base, String root, Resource resource) {
+        Snapshot next = stage(base, root, resource);
+        if(next != null) {
+            reveal(next);
+        }
+        return next;
+    }
+
+    /*
+     * Makes base with the root replaced the new head, unless another writer staged a newer snapshot since base
+     * was taken. Readers do not see it before it is revealed.
+     */
+    public Snapshot stage(Snapshot base, String root, Resource resource) {
+        Snapshot next = base.with(root, resource);
+        return head.compareAndSet(base, next) ? next : null;
+    }
+
+    /* Drops a staged snapshot nothing was staged on since, base becomes the head again */
+    public void unstage(Snapshot base, Snapshot staged) {
+        head.compareAndSet(staged, base);
+    }
+
+    /* Makes a staged snapshot visible, it contains every change staged before it so an older one never replaces it */
+    public void reveal(Snapshot staged) {
+        current.accumulateAndGet(staged, (visible, next) -> next.version > visible.version ? next : visible);
+    }
+
+    /* Replaces the whole tree, used on recovery before any request is served */
+    public void restore(Map<String, Resource> roots, long version) {
+        current.set(new Snapshot(version, Collections.unmodifiableMap(new HashMap<>(roots))));
+        head.set(current.get());
+        index.clear();
+        roots.values().forEach(root -> indexResource(root.name, root, version));
+    }
+
+    public Resource getIndexedResource(String path) {
+        Indexed indexed = index.get(path);
+        return indexed == null ? null : indexed.resource;
+    }
+
+    public void indexResource(String path, Resource resource) {
+        indexResource(path, resource, current.get().version);
+    }
+
+    /* Writers index the nodes they published, an entry is only replaced by one from a newer snapshot */
+    public void indexResource(String path, Resource resource, long version) {
+        index.merge(path, new Indexed(version, resource), (old, update) -> update.version >= old.version ? update : old);
     }
 
     @Override
@@ -54,8 +168,8 @@ public class Storage implements InitializingBean {
 
         users.put(bob, bob);
         users.put(alice, alice);
-        resources.put(alice, new Folder(alice, alice));
-        resources.put(bob, new Folder(bob, bob));
+        addResource(alice, new Folder(alice, alice));
+        addResource(bob, new Folder(bob, bob));
     }
 
     public Map<String, String> getUsers() {
@@ -63,6 +177,6 @@ public class Storage implements InitializingBean {
     }
 
     public Map<String, Resource> getResources() {
-        return resources;
+        return current.get().getResources();
     }
 }
@@ -0,0 +1,45 @@
+package com.ionut.ciuta.posd1.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a walk of the resource tree.
+ */
+@Name("com.ionut.ciuta.posd1.Traversal")
+@Label("Resource Tree Traversal")
+@Category({"POSD", "Storage"})
+class TraversalEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Path")
+    String path;
+
+    @Label("Depth")
+    @Description("Number of segments in the path")
+    int depth;
+
+    @Label("Nodes Visited")
+    int nodesVisited;
+
+    @Label("Matched")
+    @Description("Whether the walk reached the last segment")
+    boolean matched;
+
+    /* Fields are only filled in when the event is recorded, so a disabled event costs the timestamps */
+    void commit(String operation, String path, int depth, int nodesVisited, boolean matched) {
+        end();
+        if(shouldCommit()) {
+            this.operation = operation;
+            this.path = path;
+            this.depth = depth;
+            this.nodesVisited = nodesVisited;
+            this.matched = matched;
+            commit();
+        }
+    }
+}
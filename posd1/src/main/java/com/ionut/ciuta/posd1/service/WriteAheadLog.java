@@ -0,0 +1,576 @@
+package com.ionut.ciuta.posd1.service;
+
+import com.ionut.ciuta.posd1.exception.CustomException;
+import com.ionut.ciuta.posd1.model.File;
+import com.ionut.ciuta.posd1.model.Folder;
+import com.ionut.ciuta.posd1.model.Mutation;
+import com.ionut.ciuta.posd1.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Durability for the in-memory resource tree. Every staged mutation is appended to a checksummed log segment
+ * by a single writer thread that fsyncs whole batches at once (group commit) and only then reveals the staged
+ * snapshots to readers. A checkpoint thread periodically writes the current Storage snapshot and drops the
+ * segments it covers.
+ * Records carry the snapshot version they were staged at, recovery loads the last snapshot and replays
+ * the newer records in version order. After a failed write the log stops accepting mutations, nothing staged
+ * after the failure is revealed.
+ */
+@Component
+public class WriteAheadLog implements DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x504f5344;
+    private static final int FORMAT = 1;
+    private static final int MAX_RECORD = 64 << 20;
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /* A request gives up on its record after this long, the outcome of the mutation is then unknown */
+    private static final long AWAIT_SECONDS = 30;
+
+    /* A framed record waiting for the next group commit, with the snapshot it reveals */
+    private static final class Pending {
+        final ByteBuffer frame;
+        final Storage.Snapshot staged;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Pending(ByteBuffer frame, Storage.Snapshot staged) {
+            this.frame = frame;
+            this.staged = staged;
+        }
+    }
+
+    private static final class Record {
+        final long version;
+        final Mutation mutation;
+
+        Record(long version, Mutation mutation) {
+            this.version = version;
+            this.mutation = mutation;
+        }
+    }
+
+    @Autowired
+    private Storage storage;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    private final boolean enabled;
+    private final Path dir;
+    private final int maxBatch;
+    private final long snapshotIntervalNanos;
+    private final int snapshotEvery;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong sinceSnapshot = new AtomicLong();
+
+    /* Guards the current segment, held by the writer for a batch and by a checkpoint to roll over */
+    private final Object segmentLock = new Object();
+
+    /* One checkpoint at a time, they all write the same temporary snapshot file */
+    private final Object checkpointLock = new Object();
+    private FileChannel segment;
+    private long segmentNumber;
+
+    private volatile boolean running;
+    private volatile IOException failure;
+    private volatile long lastSnapshot;
+    private Thread writer;
+    private ScheduledExecutorService checkpointer;
+
+    public WriteAheadLog(@Value("${storage.wal.enabled:false}") boolean enabled,
+                         @Value("${storage.dir:data}") String dir,
+                         @Value("${storage.wal.max-batch:256}") int maxBatch,
+                         @Value("${storage.snapshot.interval-ms:60000}") long snapshotIntervalMs,
+                         @Value("${storage.snapshot.every:10000}") int snapshotEvery) {
+        this.enabled = enabled;
+        this.dir = Paths.get(dir);
+        this.maxBatch = maxBatch;
+        this.snapshotIntervalNanos = TimeUnit.MILLISECONDS.toNanos(snapshotIntervalMs);
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /*
+     * Queues the record of the mutation staged as the given snapshot, which is revealed once the record is on disk.
+     * Callers queue in the order they stage, so records reach the log in version order. Throws when the log
+     * does not accept mutations, the snapshot must then be unstaged.
+     */
+    public CompletableFuture<Void> submit(Mutation mutation, Storage.Snapshot staged) {
+        if(!enabled) {
+            storage.reveal(staged);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Pending pending = new Pending(frame(staged.version, mutation), staged);
+
+        /* Checked and queued under the lock destroy() stops the log with, the writer drains all it accepted */
+        synchronized (queue) {
+            if(!running || failure != null)
+                throw new CustomException(HttpStatus.INTERNAL_SERVER_ERROR, "Not Persisted");
+
+            queue.add(pending);
+        }
+        return pending.durable;
+    }
+
+    /* Blocks until a submitted mutation is on disk and visible */
+    public void await(CompletableFuture<Void> durable) {
+        try {
+            durable.get(AWAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CustomException(HttpStatus.INTERNAL_SERVER_ERROR, "Not Persisted");
+        } catch (ExecutionException | TimeoutException e) {
+            throw new CustomException(HttpStatus.INTERNAL_SERVER_ERROR, "Not Persisted");
+        }
+    }
+
+    /* Restores the last snapshot, hands the newer records to replay and starts accepting appends */
+    public void recover(Consumer<Mutation> replay) throws IOException {
+        if(!enabled)
+            return;
+
+        Files.createDirectories(dir);
+
+        long base = 0;
+        Path snapshotFile = dir.resolve(SNAPSHOT);
+        if(Files.exists(snapshotFile)) {
+            base = readSnapshot(snapshotFile);
+        }
+
+        List<Path> segments = segments();
+        List<Record> records = new ArrayList<>();
+        for(Path path : segments) {
+            for(Record record : readSegment(path)) {
+                if(record.version > base) {
+                    records.add(record);
+                }
+            }
+        }
+
+        records.sort(Comparator.comparingLong(r -> r.version));
+        records.forEach(record -> replay.accept(record.mutation));
+
+        /* Versions published from now on must sort after everything already in the log */
+        long newest = records.isEmpty() ? base : records.get(records.size() - 1).version;
+        Storage.Snapshot recovered = storage.snapshot();
+        if(newest > recovered.version) {
+            storage.restore(recovered.getResources(), newest);
+        }
+
+        segmentNumber = segments.isEmpty() ? 1 : number(segments.get(segments.size() - 1)) + 1;
+        segment = openSegment(segmentNumber);
+        lastSnapshot = System.nanoTime();
+        sinceSnapshot.set(records.size());
+        start();
+
+        log.info("Recovered snapshot version {} and {} log records from {}", base, records.size(), dir.toAbsolutePath());
+    }
+
+    private void start() {
+        running = true;
+
+        writer = new Thread(this::drain, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpointIfDue, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void drain() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+
+        while(running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(10, TimeUnit.MILLISECONDS);
+                if(first == null)
+                    continue;
+
+                /* Everything that queued up during the previous fsync goes out with the next one */
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /*
+     * Writes and fsyncs a batch, then reveals its newest snapshot, which contains all the others. Staged snapshots
+     * build on each other, so once a write fails every later one would reveal the lost change too and fails as well.
+     */
+    private void commit(List<Pending> batch) {
+        try {
+            synchronized (segmentLock) {
+                if(failure != null)
+                    throw failure;
+
+                for(Pending pending : batch) {
+                    while(pending.frame.hasRemaining()) {
+                        segment.write(pending.frame);
+                    }
+                }
+                segment.force(false);
+
+                /* Revealed under the lock, a checkpoint that rolled past these records sees them in the snapshot */
+                storage.reveal(batch.get(batch.size() - 1).staged);
+            }
+
+            sinceSnapshot.addAndGet(batch.size());
+            batch.forEach(pending -> pending.durable.complete(null));
+        } catch (IOException e) {
+            if(failure == null) {
+                log.error("Write-ahead log append failed, no further mutations are accepted", e);
+                failure = e;
+            }
+            batch.forEach(pending -> pending.durable.completeExceptionally(e));
+        }
+    }
+
+    private void checkpointIfDue() {
+        long pending = sinceSnapshot.get();
+        boolean due = pending >= snapshotEvery
+                || (pending > 0 && System.nanoTime() - lastSnapshot >= snapshotIntervalNanos);
+
+        if(due) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.error("Checkpoint failed", e);
+            }
+        }
+    }
+
+    /*
+     * Rolls over to a new segment, then writes the current snapshot. Records in the older segments were all
+     * revealed before the roll and so are covered by the snapshot, which makes those segments obsolete.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long firstKept;
+            synchronized (segmentLock) {
+                roll();
+                firstKept = segmentNumber;
+            }
+
+            sinceSnapshot.set(0);
+            lastSnapshot = System.nanoTime();
+
+            Storage.Snapshot snapshot = storage.snapshot();
+            writeSnapshot(snapshot);
+
+            for(Path path : segments()) {
+                if(number(path) < firstKept) {
+                    Files.deleteIfExists(path);
+                }
+            }
+
+            log.debug("Checkpoint at version {}", snapshot.version);
+        }
+    }
+
+    private void roll() throws IOException {
+        segment.close();
+        segment = openSegment(++segmentNumber);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if(!running)
+            return;
+
+        synchronized (queue) {
+            running = false;
+        }
+
+        /* Not interrupted: that would close the channel of a checkpoint in progress */
+        checkpointer.shutdown();
+        if(!checkpointer.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.warn("Scheduled checkpoint still running at shutdown");
+        }
+        writer.join();
+
+        /* Left behind only if the writer was interrupted, nothing waits on them forever */
+        IOException stopped = new IOException("Write-ahead log stopped");
+        for(Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+            pending.durable.completeExceptionally(stopped);
+        }
+
+        if(sinceSnapshot.get() > 0) {
+            checkpoint();
+        }
+
+        synchronized (segmentLock) {
+            segment.close();
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(dir.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> segments() throws IOException {
+        try(Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted(Comparator.comparingLong(WriteAheadLog::number))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long number(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /* Frame: payload length, CRC32 of the payload, payload */
+    private static ByteBuffer frame(long version, Mutation mutation) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(version);
+            out.writeByte(mutation.type);
+            writeString(out, mutation.path);
+            writeString(out, mutation.content);
+            writeString(out, mutation.user);
+            writeString(out, mutation.role);
+
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+            frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            return frame;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Records up to the end of the segment or the first torn or corrupt frame */
+    private static List<Record> readSegment(Path path) throws IOException {
+        List<Record> records = new ArrayList<>();
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while(true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                byte[] payload;
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                    if(length < 0 || length > MAX_RECORD)
+                        throw new IOException("Bad record length " + length);
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (IOException e) {
+                    log.warn("Torn record at the end of {}, ignoring the rest", path);
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if((int) crc.getValue() != checksum) {
+                    log.warn("Checksum mismatch in {}, ignoring the rest", path);
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+                long version = record.readLong();
+                byte type = record.readByte();
+                records.add(new Record(version, new Mutation(
+                        type, readString(record), readString(record), readString(record), readString(record))));
+            }
+        }
+
+        return records;
+    }
+
+    /* Written next to the old snapshot and moved over it, a crash leaves either one complete */
+    private void writeSnapshot(Storage.Snapshot snapshot) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)), crc));
+
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(snapshot.version);
+
+            Map<String, Resource> roots = snapshot.getResources();
+            out.writeInt(roots.size());
+            for(Map.Entry<String, Resource> root : roots.entrySet()) {
+                writeString(out, root.getKey());
+                writeNode(out, root.getValue());
+            }
+
+            out.flush();
+            new DataOutputStream(Channels.newOutputStream(channel)).writeLong(crc.getValue());
+            channel.force(true);
+        }
+
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Loads the snapshot into storage, returns its version */
+    private long readSnapshot(Path path) throws IOException {
+        try(InputStream raw = new BufferedInputStream(Files.newInputStream(path))) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+
+            if(in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT)
+                throw new IOException("Not a snapshot: " + path);
+
+            long version = in.readLong();
+            int count = in.readInt();
+            Map<String, Resource> roots = new HashMap<>();
+            for(int i = 0; i < count; i++) {
+                roots.put(readString(in), readNode(in));
+            }
+
+            long expected = crc.getValue();
+            if(new DataInputStream(raw).readLong() != expected)
+                throw new IOException("Snapshot checksum mismatch: " + path);
+
+            storage.restore(roots, version);
+            return version;
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, Resource resource) throws IOException {
+        out.writeByte(resource.type);
+        writeString(out, resource.name);
+        writeString(out, resource.owner);
+
+        out.writeInt(resource.acl.size());
+        for(String role : resource.acl) {
+            writeString(out, role);
+        }
+
+        if(resource.isFile()) {
+            File file = (File) resource;
+            writeString(out, file.peekContent());
+            out.writeLong(file.getVersion());
+        } else {
+            List<Resource> children = ((Folder) resource).getContent();
+            out.writeInt(children.size());
+            for(Resource child : children) {
+                writeNode(out, child);
+            }
+        }
+    }
+
+    private Resource readNode(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String name = readString(in);
+        String owner = readString(in);
+
+        int roles = in.readInt();
+        Set<String> acl = new HashSet<>();
+        for(int i = 0; i < roles; i++) {
+            acl.add(readString(in));
+        }
+
+        if(type == Resource.Type.FILE) {
+            String content = readString(in);
+            return new File(name, blobStore.store(content), in.readLong(), owner, acl);
+        }
+
+        Folder folder = new Folder(name, owner, acl);
+        int children = in.readInt();
+        for(int i = 0; i < children; i++) {
+            folder.add(readNode(in));
+        }
+        return folder;
+    }
+
+    /* Length prefixed UTF-8, -1 for null */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -7,7 +7,7 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = "storage.wal.enabled=false")
 public class POSD1Tests {
 
 	@Test
@@ -20,7 +20,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  * Functional verification for the requirements of scenario 1
  */
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = "storage.wal.enabled=false")
 @AutoConfigureMockMvc
 public class POSD1FV {
 
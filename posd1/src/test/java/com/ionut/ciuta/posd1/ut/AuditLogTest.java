@@ -0,0 +1,49 @@
+package com.ionut.ciuta.posd1.ut;
+
+import com.ionut.ciuta.posd1.model.Permission;
+import com.ionut.ciuta.posd1.service.AuditLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AuditLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordedEventsShouldBeWrittenInOrder() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AuditLog auditLog = new AuditLog(file.getPath(), 16, 4);
+        auditLog.afterPropertiesSet();
+
+        for(int i = 0; i < 10; i++) {
+            auditLog.record("bob", "/alice/file" + i, Permission.R, i % 2 == 0);
+        }
+        auditLog.destroy();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(10, lines.size());
+        assertTrue(lines.get(0).endsWith("user=bob path=/alice/file0 permission=r decision=allow"));
+        assertTrue(lines.get(9).endsWith("user=bob path=/alice/file9 permission=r decision=deny"));
+    }
+
+    @Test
+    public void eventsShouldBeDroppedWhenBufferIsFull() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AuditLog auditLog = new AuditLog(file.getPath(), 4, 4);
+
+        /* Writer not started, nothing drains the buffer */
+        for(int i = 0; i < 6; i++) {
+            auditLog.record("bob", "/alice/file", Permission.W, false);
+        }
+
+        assertEquals(2, auditLog.getDropped());
+    }
+}
@@ -1,5 +1,7 @@
 package com.ionut.ciuta.posd1.ut;
 
+import com.ionut.ciuta.posd1.model.Acl;
+import com.ionut.ciuta.posd1.model.EffectivePermissions;
 import com.ionut.ciuta.posd1.model.File;
 import com.ionut.ciuta.posd1.model.Permission;
 import com.ionut.ciuta.posd1.model.Resource;
@@ -7,17 +9,25 @@ import com.ionut.ciuta.posd1.model.sql.Role;
 import com.ionut.ciuta.posd1.model.sql.User;
 import com.ionut.ciuta.posd1.repository.UserRepository;
 import com.ionut.ciuta.posd1.service.AuthService;
+import com.ionut.ciuta.posd1.service.CredentialCache;
+import com.ionut.ciuta.posd1.service.OperationMetrics;
+import com.ionut.ciuta.posd1.service.PermissionCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 
 import java.util.*;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -34,6 +44,15 @@ public class AuthServiceTest {
     @Mock
     private UserRepository userRepository;
 
+    @Spy
+    private CredentialCache credentialCache = new CredentialCache(60000, 100);
+
+    @Spy
+    private PermissionCache permissionCache = new PermissionCache();
+
+    @Spy
+    private OperationMetrics metrics = new OperationMetrics(new SimpleMeterRegistry());
+
     @Mock
     private User mockDbUser;
 
@@ -67,6 +86,25 @@ public class AuthServiceTest {
         assertFalse(authService.isAuthenticated(user, pass));
     }
 
+    @Test
+    public void isAuthenticatedShouldHitCacheForRepeatedCalls() throws Exception {
+        when(userRepository.findByName(user)).thenReturn(new User(user, pass));
+
+        assertTrue(authService.isAuthenticated(user, pass));
+        assertTrue(authService.isAuthenticated(user, pass));
+        verify(userRepository, times(1)).findByName(user);
+        assertEquals(1, credentialCache.getHits());
+    }
+
+    @Test
+    public void isAuthenticatedShouldNotTrustCacheForWrongPass() throws Exception {
+        when(userRepository.findByName(user)).thenReturn(new User(user, pass));
+
+        assertTrue(authService.isAuthenticated(user, pass));
+        assertFalse(authService.isAuthenticated(user, "wrongPass"));
+        verify(userRepository, times(2)).findByName(user);
+    }
+
     @Test
     public void isOwnerReturnsTrueForOwner() {
         Resource r = new File("file", "empty", user);
@@ -97,4 +135,78 @@ public class AuthServiceTest {
         when(mockDbRole.getPermissions()).thenReturn("r");
         assertFalse(authService.hasPermission(user, mockFile, "w"));
     }
+
+    @Test
+    public void hasPermissionShouldReuseResolvedRoles() {
+        Resource r = new File("file", "empty", "owner", new HashSet<>(Set.of(role)));
+        when(userRepository.findByName(user)).thenReturn(mockDbUser);
+        when(mockDbUser.getName()).thenReturn(user);
+        when(mockDbUser.getRoles()).thenReturn(Set.of(mockDbRole));
+        when(mockDbRole.getName()).thenReturn(role);
+        when(mockDbRole.getPermissionMask()).thenReturn(Permission.READ);
+
+        assertTrue(authService.hasPermission(user, r, "r"));
+        assertFalse(authService.hasPermission(user, r, "w"));
+        verify(userRepository, times(1)).findByName(user);
+    }
+
+    @Test
+    public void hasPermissionShouldReloadRolesAfterInvalidation() {
+        Resource r = new File("file", "empty", "owner", new HashSet<>(Set.of(role)));
+        when(userRepository.findByName(user)).thenReturn(mockDbUser);
+        when(mockDbUser.getName()).thenReturn(user);
+        when(mockDbUser.getRoles()).thenReturn(Set.of(mockDbRole));
+        when(mockDbRole.getName()).thenReturn(role);
+        when(mockDbRole.getPermissionMask()).thenReturn(Permission.READ);
+
+        assertFalse(authService.hasPermission(user, r, "w"));
+        when(mockDbRole.getPermissionMask()).thenReturn(Permission.ALL);
+        permissionCache.invalidateRole(role);
+        assertTrue(authService.hasPermission(user, r, "w"));
+    }
+
+    @Test
+    public void invalidatingAnUnknownRoleShouldKeepTheCacheAndAllocateNoId() {
+        Resource r = new File("file", "empty", "owner", new HashSet<>(Set.of(role)));
+        when(userRepository.findByName(user)).thenReturn(mockDbUser);
+        when(mockDbUser.getName()).thenReturn(user);
+        when(mockDbUser.getRoles()).thenReturn(Set.of(mockDbRole));
+        when(mockDbRole.getName()).thenReturn(role);
+        when(mockDbRole.getPermissionMask()).thenReturn(Permission.READ);
+
+        assertTrue(authService.hasPermission(user, r, "r"));
+        permissionCache.invalidateRole("no such role");
+        assertTrue(authService.hasPermission(user, r, "r"));
+
+        assertEquals(-1, Acl.findId("no such role"));
+        verify(userRepository, times(1)).findByName(user);
+    }
+
+    @Test
+    public void aclNamingARoleBeforeItHasAnIdShouldMatchItOnceGranted() {
+        Acl acl = new File("file", "empty", "owner", Set.of("role created later")).acl;
+        assertEquals(-1, Acl.findId("role created later"));
+
+        EffectivePermissions permissions = new EffectivePermissions(Map.of("role created later", Permission.READ));
+        assertTrue(permissions.allows(acl, Permission.READ));
+    }
+
+    @Test
+    public void rolesLoadedBeforeAnInvalidationShouldNotBeCached() {
+        Resource r = new File("file", "empty", "owner", new HashSet<>(Set.of(role)));
+        when(mockDbUser.getName()).thenReturn(user);
+        when(mockDbUser.getRoles()).thenReturn(Set.of(mockDbRole));
+        when(mockDbRole.getName()).thenReturn(role);
+        when(mockDbRole.getPermissionMask()).thenReturn(Permission.READ);
+
+        /* The role changes while the first check is loading the user */
+        when(userRepository.findByName(user)).thenAnswer(invocation -> {
+            permissionCache.invalidateRole(role);
+            return mockDbUser;
+        });
+
+        assertTrue(authService.hasPermission(user, r, "r"));
+        assertTrue(authService.hasPermission(user, r, "r"));
+        verify(userRepository, times(2)).findByName(user);
+    }
 }
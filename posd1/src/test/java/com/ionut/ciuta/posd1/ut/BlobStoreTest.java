@@ -0,0 +1,274 @@
+package com.ionut.ciuta.posd1.ut;
+
+import com.ionut.ciuta.posd1.model.ContentHandle;
+import com.ionut.ciuta.posd1.service.BlobStore;
+import com.sun.management.ThreadMXBean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlobStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void smallContentsShouldStayOnTheHeap() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 64, 0, 0, 1 << 20);
+
+        ContentHandle handle = blobStore.store("small");
+
+        assertEquals("small", handle.read());
+        assertEquals(0, blobStore.getSegmentBytes());
+        assertFalse(Files.exists(blobs()));
+    }
+
+    @Test
+    public void largeContentsShouldBeReadBackFromTheMapping() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 64, 0, 0, 1 << 20);
+
+        ContentHandle first = blobStore.store("first blob content");
+        ContentHandle second = blobStore.store("zweiter Blob, äöü");
+
+        assertEquals("first blob content", first.read());
+        assertEquals("zweiter Blob, äöü", second.read());
+        assertEquals(20, second.size());
+        assertEquals(64, blobStore.getSegmentBytes());
+    }
+
+    @Test
+    public void fullSegmentsShouldRollOverAndOversizedContentsGetTheirOwn() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 64, 0, 0, 1 << 20);
+        char[] large = new char[100];
+        Arrays.fill(large, 'x');
+
+        ContentHandle first = blobStore.store("0123456789012345678901234567890123456789");
+        ContentHandle oversized = blobStore.store(new String(large));
+        ContentHandle last = blobStore.store("9876543210987654321098765432109876543210");
+
+        assertEquals(new String(large), oversized.read());
+        assertEquals("0123456789012345678901234567890123456789", first.read());
+        assertEquals("9876543210987654321098765432109876543210", last.read());
+        assertTrue(Files.exists(blobs().resolve("segment-3.bin")));
+    }
+
+    @Test
+    public void identicalContentsShouldBeStoredOnce() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 64, 0, 0, 1 << 20);
+
+        ContentHandle first = blobStore.store("shared template content");
+        ContentHandle second = blobStore.store(new String("shared template content"));
+        ContentHandle small = blobStore.store("config");
+        ContentHandle sameSmall = blobStore.store("config");
+
+        assertEquals(2, blobStore.getDistinctContents());
+        assertEquals("shared template content", second.read());
+        assertEquals("config", sameSmall.read());
+        assertTrue(first.contentEquals("shared template content"));
+        assertFalse(first.contentEquals("shared template contenT"));
+        assertTrue(small.contentEquals("config"));
+
+        /* Only the first copy took space in the segment */
+        blobStore.store("another blob of content");
+        assertEquals(64, blobStore.getSegmentBytes());
+    }
+
+    @Test
+    public void entriesShouldBeFreedWhenTheLastReferenceIsCollected() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 64, 0, 0, 1 << 20);
+
+        ContentHandle kept = blobStore.store("kept content");
+        blobStore.store("dropped content");
+        blobStore.store("dropped content");
+
+        for(int i = 0; i < 100 && blobStore.getDistinctContents() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, blobStore.getDistinctContents());
+        assertEquals("kept content", kept.read());
+    }
+
+    @Test
+    public void coldContentsShouldBeCompressedAndRestoredOnRead() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 1 << 16, 0, 0, 1 << 20);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 200; i++) {
+            text.append("line ").append(i % 10).append(" of a text heavy file\n");
+        }
+
+        ContentHandle handle = blobStore.store(text.toString());
+        ContentHandle incompressible = blobStore.store("a8Kz!q0#Lm2@xV7");
+
+        assertEquals(1, blobStore.compact());
+        assertEquals(1, blobStore.getCompressedContents());
+        assertTrue(handle.contentEquals(text.toString()));
+
+        assertEquals(text.toString(), handle.read());
+        assertEquals(0, blobStore.getCompressedContents());
+        assertEquals("a8Kz!q0#Lm2@xV7", incompressible.read());
+    }
+
+    @Test
+    public void unchangedContentShouldBeComparedWithoutCopyingIt() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 1 << 22, 0, 0, 1 << 10);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 20_000; i++) {
+            text.append("zeile ").append(i % 7).append(" äöü €\n");
+        }
+
+        /* Same hash and length as the stored contents, only the last bytes differ */
+        String cold = text + "cold Aa";
+        String hot = text + "hot Aa";
+        String changedCold = text + "cold BB";
+        String changedHot = text + "hot BB";
+
+        ContentHandle compressed = blobStore.store(cold);
+        assertEquals(1, blobStore.compact());
+        ContentHandle raw = blobStore.store(hot);
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for(int warmup = 0; warmup < 3; warmup++) {
+            raw.contentEquals(hot);
+            compressed.contentEquals(cold);
+        }
+
+        long before = threads.getThreadAllocatedBytes(id);
+        assertTrue(raw.contentEquals(hot));
+        assertTrue(compressed.contentEquals(cold));
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        assertTrue("allocated " + allocated, allocated < text.length() / 4);
+        assertFalse(raw.contentEquals(changedHot));
+        assertFalse(compressed.contentEquals(changedCold));
+        assertEquals(1, blobStore.getCompressedContents());
+    }
+
+    @Test
+    public void recentlyReadContentsShouldNotBeCompressed() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 1 << 16, 60_000, 60_000, 1 << 20);
+        ContentHandle handle = blobStore.store("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+
+        assertEquals(0, blobStore.compact());
+        assertEquals(60, handle.size());
+    }
+
+    @Test
+    public void hotContentsShouldBeServedFromTheHeapWithinTheBudget() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 1 << 16, 0, 0, 40);
+
+        ContentHandle first = blobStore.store("first content of twenty");
+        ContentHandle second = blobStore.store("second content of twenty");
+
+        assertEquals("first content of twenty", first.read());
+        assertEquals("first content of twenty", first.read());
+        assertEquals(1, blobStore.getCacheHits());
+
+        /* Both do not fit, the least recently used one goes back to the mapping */
+        assertEquals("second content of twenty", second.read());
+        assertEquals("first content of twenty", first.read());
+        assertEquals(1, blobStore.getCacheHits());
+        assertEquals(3, blobStore.getCacheMisses());
+        assertTrue(blobStore.getHeapBytes() <= 40);
+    }
+
+    @Test
+    public void concurrentReadsShouldBeServedWithinTheBudget() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 1 << 16, 60_000, 60_000, 1000);
+        List<String> contents = new ArrayList<>();
+        List<ContentHandle> handles = new ArrayList<>();
+        for(int i = 0; i < 32; i++) {
+            contents.add(String.format("%100d", i));
+            handles.add(blobStore.store(contents.get(i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> readers = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            readers.add(executor.submit(() -> {
+                Random random = new Random();
+                for(int n = 0; n < 20_000; n++) {
+                    /* Mostly the same few contents, so there are hits as well as evictions */
+                    int i = random.nextInt(4) == 0 ? random.nextInt(32) : random.nextInt(4);
+                    assertEquals(contents.get(i), handles.get(i).read());
+                }
+            }));
+        }
+
+        for(Future<?> reader : readers) {
+            reader.get();
+        }
+        executor.shutdown();
+
+        assertTrue(blobStore.getCacheHits() > 0);
+        assertEquals(8 * 20_000, blobStore.getCacheHits() + blobStore.getCacheMisses());
+        assertTrue(blobStore.getHeapBytes() <= 1000);
+    }
+
+    @Test
+    public void inlineContentsShouldSpillToDiskOverTheBudget() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 64, 0, 0, 10);
+
+        ContentHandle first = blobStore.store("inline");
+        ContentHandle spilled = blobStore.store("spilled");
+
+        assertEquals(6, blobStore.getHeapBytes());
+        assertEquals(64, blobStore.getSegmentBytes());
+        assertEquals("inline", first.read());
+        assertEquals("spilled", spilled.read());
+        assertTrue(spilled.contentEquals("spilled"));
+    }
+
+    @Test
+    public void freedEntriesShouldNotTakeBackRegionsOrCacheSpace() throws Exception {
+        BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 8, 1 << 16, 0, 0, 1 << 20);
+        String shared = String.join("", Collections.nCopies(40, "Aa"));
+        String colliding = String.join("", Collections.nCopies(40, "BB"));
+
+        /* Same hash and length, the second one gets an entry of its own outside the map and is compacted all the same */
+        ContentHandle first = blobStore.store(shared);
+        ContentHandle second = blobStore.store(colliding);
+        assertEquals(2, blobStore.getDistinctContents());
+        assertEquals(2, blobStore.compact());
+        assertEquals(2, blobStore.getCompressedContents());
+        assertEquals(colliding, second.read());
+
+        /* The last references go away while reads restore the compressed blobs and fill the cache */
+        blobStore.compact();
+        release(blobStore, first);
+        release(blobStore, second);
+        assertEquals(shared, first.read());
+        assertEquals(colliding, second.read());
+
+        assertEquals(0, blobStore.getHeapBytes());
+        assertEquals(0L, ReflectionTestUtils.getField(ReflectionTestUtils.getField(blobStore, "current"), "live"));
+        assertEquals(0, blobStore.getDistinctContents());
+    }
+
+    /* What the cleaner does once a handle is unreachable */
+    private void release(BlobStore blobStore, ContentHandle handle) {
+        ReflectionTestUtils.invokeMethod(blobStore, "release", ReflectionTestUtils.getField(handle, "entry"));
+    }
+
+    private Path blobs() {
+        return folder.getRoot().toPath().resolve("blobs");
+    }
+}
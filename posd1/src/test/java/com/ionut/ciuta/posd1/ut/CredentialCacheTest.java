@@ -0,0 +1,81 @@
+package com.ionut.ciuta.posd1.ut;
+
+import com.ionut.ciuta.posd1.service.CredentialCache;
+import com.ionut.ciuta.posd1.service.OperationMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CredentialCacheTest {
+    @Test
+    public void fullCacheShouldDropTheOldestEntry() throws Exception {
+        CredentialCache cache = new CredentialCache(60000, 3);
+
+        cache.put("alice", "a");
+        cache.put("bob", "b");
+        cache.put("carol", "c");
+        cache.put("alice", "a2");
+        cache.put("dave", "d");
+
+        /* Alice was put again, so bob is the oldest */
+        assertEquals(3, cache.size());
+        assertFalse(cache.isVerified("bob", "b"));
+        assertTrue(cache.isVerified("alice", "a2"));
+        assertTrue(cache.isVerified("carol", "c"));
+        assertTrue(cache.isVerified("dave", "d"));
+    }
+
+    @Test
+    public void concurrentInsertsShouldStayWithinTheBound() throws Exception {
+        CredentialCache cache = new CredentialCache(60000, 50);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> writers = new ArrayList<>();
+
+        for(int t = 0; t < 8; t++) {
+            int thread = t;
+            writers.add(executor.submit(() -> {
+                start.await();
+                int largest = 0;
+                for(int i = 0; i < 2000; i++) {
+                    cache.put("user" + thread + "-" + i, "pass");
+                    largest = Math.max(largest, cache.size());
+                }
+                return largest;
+            }));
+        }
+
+        start.countDown();
+        for(Future<Integer> writer : writers) {
+            assertTrue(writer.get() <= 50);
+        }
+        executor.shutdown();
+
+        assertEquals(50, cache.size());
+    }
+
+    @Test
+    public void hitsAndMissesShouldBePublishedAsCounters() throws Exception {
+        CredentialCache cache = new CredentialCache(60000, 3);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+
+        cache.put("alice", "a");
+        cache.isVerified("alice", "a");
+        cache.isVerified("alice", "wrong");
+        cache.isVerified("bob", "b");
+
+        assertEquals(1, registry.get(OperationMetrics.CREDENTIAL_CACHE).tag("result", "hit").functionCounter().count(), 0);
+        assertEquals(2, registry.get(OperationMetrics.CREDENTIAL_CACHE).tag("result", "miss").functionCounter().count(), 0);
+    }
+}
@@ -1,26 +1,45 @@
 package com.ionut.ciuta.posd1.ut;
 
+import com.ionut.ciuta.posd1.exception.CustomException;
+import com.ionut.ciuta.posd1.exception.PreconditionFailed;
+import com.ionut.ciuta.posd1.exception.ResourceInConflict;
 import com.ionut.ciuta.posd1.exception.ResourceNotFound;
 import com.ionut.ciuta.posd1.exception.ResourceOperationNotPermitted;
 import com.ionut.ciuta.posd1.exception.UnauthorizedUser;
 import com.ionut.ciuta.posd1.model.*;
 import com.ionut.ciuta.posd1.model.sql.Role;
 import com.ionut.ciuta.posd1.model.sql.User;
+import com.ionut.ciuta.posd1.repository.RoleRepository;
+import com.ionut.ciuta.posd1.service.AuditLog;
 import com.ionut.ciuta.posd1.service.AuthService;
+import com.ionut.ciuta.posd1.service.BlobStore;
+import com.ionut.ciuta.posd1.service.OperationMetrics;
 import com.ionut.ciuta.posd1.service.ResourceAccessService;
 import com.ionut.ciuta.posd1.service.ResourceService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 
 
 import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ResourceAccessServiceTest {
@@ -46,6 +65,20 @@ public class ResourceAccessServiceTest {
     @Mock
     private AuthService authService;
 
+    @Mock
+    private AuditLog auditLog;
+
+    @Mock
+    private RoleRepository roleRepository;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Spy
+    private OperationMetrics metrics = new OperationMetrics(registry);
+
+    @Spy
+    private BlobStore blobStore = new BlobStore("target/test-data", 256, 1 << 20, 0, 0, 1 << 20);
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
@@ -58,6 +91,29 @@ public class ResourceAccessServiceTest {
         resourceAccessService.read("", "", "");
     }
 
+    @Test
+    public void readShouldBeTimedWithItsOutcome() throws Exception {
+        File file = new File(userBobFile, "content", userBob);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(resourceService.find(any())).thenReturn(file);
+        when(authService.isOwner(userBob, file)).thenReturn(true);
+
+        resourceAccessService.read(userBob, userBobPass, userBobFile);
+
+        when(resourceService.find(any())).thenReturn(null);
+        try {
+            resourceAccessService.read(userBob, userBobPass, userBobFile);
+        } catch (ResourceNotFound e) {
+            /* Expected */
+        }
+
+        assertEquals(1, registry.get(OperationMetrics.RESOURCE)
+                .tag("operation", "read").tag("outcome", OperationMetrics.OK).timer().count());
+        assertEquals(1, registry.get(OperationMetrics.RESOURCE)
+                .tag("operation", "read").tag("outcome", OperationMetrics.NOT_FOUND).timer().count());
+    }
+
     @Test(expected = ResourceNotFound.class)
     public void readResourceShouldFailWithResourceNotFound() throws Exception {
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
@@ -80,7 +136,7 @@ public class ResourceAccessServiceTest {
     public void readFileShouldFailForNoPermissions() throws Exception {
         Folder folder = new Folder(userAlice, userAlice);
         File file = new File(userAliceFile, "", userAlice);
-        folder.content.add(file);
+        folder.add(file);
 
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
         when(resourceService.find(any())).thenReturn(folder);
@@ -102,7 +158,7 @@ public class ResourceAccessServiceTest {
     public void readFileShouldFailForInsufficienPermissions() throws Exception {
         Folder folder = new Folder(userAlice, userAlice);
         File file = new File(userAliceFile, "", userAlice);
-        folder.content.add(file);
+        folder.add(file);
 
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
         when(resourceService.find(any())).thenReturn(folder);
@@ -126,8 +182,8 @@ public class ResourceAccessServiceTest {
         Folder folder = new Folder(userAlice, userAlice);
         Folder subfolder = new Folder(userBob,userAlice);
         File file = new File(userAliceFile, userAliceFile, userAlice);
-        folder.content.add(subfolder);
-        folder.content.add(file);
+        folder.add(subfolder);
+        folder.add(file);
 
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
         when(authService.isOwner(userBob, folder)).thenReturn(false);
@@ -141,14 +197,14 @@ public class ResourceAccessServiceTest {
     public void readFileShouldPassForReadPermissions() throws Exception {
         Folder folder = new Folder(userAlice, userAlice);
         File file = new File(userAliceFile, userAliceFile, userAlice);
-        folder.content.add(file);
+        folder.add(file);
 
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
         when(authService.isOwner(userBob, file)).thenReturn(false);
         when(authService.canRead(userBob, file)).thenReturn(true);
         when(resourceService.find(any())).thenReturn(file);
 
-        assertEquals(file.content, resourceAccessService.read(userBob, userBobPass, userAlice));
+        assertEquals(file.getContent(), resourceAccessService.read(userBob, userBobPass, userAlice));
     }
 
     @Test(expected = UnauthorizedUser.class)
@@ -189,13 +245,98 @@ public class ResourceAccessServiceTest {
         File file = new File(userAlice, userAliceFile, userAlice);
 
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
-        when(authService.isOwner(userBob, file)).thenReturn(false);
-        when(authService.canWrite(userBob, file)).thenReturn(true);
-        when(authService.canRead(userBob, file)).thenReturn(true);
-        when(resourceService.find(any())).thenReturn(file);
+        when(authService.isOwner(eq(userBob), any())).thenReturn(false);
+        when(authService.canWrite(eq(userBob), any())).thenReturn(true);
+        when(authService.canRead(eq(userBob), any())).thenReturn(true);
+        publish(file);
 
         resourceAccessService.write(userBob, userBobPass, userAlice, userBobFile);
         assertEquals(userBobFile, resourceAccessService.read(userBob, userBobPass, userAlice));
+        assertEquals(userAliceFile, file.getContent());
+    }
+
+    @Test
+    public void writeShouldBumpTheVersionReturnedByRead() throws Exception {
+        File file = new File(userBobFile, "v1", userBob);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(eq(userBob), any())).thenReturn(true);
+        AtomicReference<Resource> published = publish(file);
+
+        Revision read = resourceAccessService.readRevision(userBob, userBobPass, userBobFile);
+        long written = resourceAccessService.write(userBob, userBobPass, userBobFile, "v2", read.version);
+
+        assertEquals(read.version + 1, written);
+        assertEquals(written, resourceAccessService.readRevision(userBob, userBobPass, userBobFile).version);
+        assertEquals("v2", ((File) published.get()).getContent());
+    }
+
+    @Test
+    public void writeOfUnchangedContentShouldKeepTheVersion() throws Exception {
+        File file = new File(userBobFile, "v1", userBob);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(eq(userBob), any())).thenReturn(true);
+        AtomicReference<Resource> published = publish(file);
+
+        long written = resourceAccessService.write(userBob, userBobPass, userBobFile, "v1", file.getVersion());
+
+        assertEquals(file.getVersion(), written);
+        assertSame(file, published.get());
+        verify(blobStore, never()).store(any());
+    }
+
+    @Test
+    public void writeShouldSucceedWhenAnyExpectedVersionMatches() throws Exception {
+        File file = new File(userBobFile, "v1", userBob);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(eq(userBob), any())).thenReturn(true);
+        AtomicReference<Resource> published = publish(file);
+
+        long written = resourceAccessService.write(userBob, userBobPass, userBobFile, "v2",
+                file.getVersion() + 5, file.getVersion());
+
+        assertEquals(file.getVersion() + 1, written);
+        assertEquals("v2", ((File) published.get()).getContent());
+    }
+
+    @Test(expected = PreconditionFailed.class)
+    public void writeShouldFailWhenNoVersionCanMatch() throws Exception {
+        File file = new File(userBobFile, "v1", userBob);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(eq(userBob), any())).thenReturn(true);
+        publish(file);
+
+        resourceAccessService.write(userBob, userBobPass, userBobFile, "v2", new long[0]);
+    }
+
+    @Test(expected = PreconditionFailed.class)
+    public void writeShouldFailForStaleVersion() throws Exception {
+        File file = new File(userBobFile, "v1", userBob);
+        long stale = file.getVersion();
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(eq(userBob), any())).thenReturn(true);
+        AtomicReference<Resource> published = publish(file.withContent("concurrent"));
+
+        try {
+            resourceAccessService.write(userBob, userBobPass, userBobFile, "v2", stale);
+        } finally {
+            assertEquals("concurrent", ((File) published.get()).getContent());
+        }
+    }
+
+    @Test
+    public void readFolderShouldNotBeVersioned() throws Exception {
+        Folder folder = new Folder(userBob, userBob);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(userBob, folder)).thenReturn(true);
+        when(resourceService.find(any())).thenReturn(folder);
+
+        assertFalse(resourceAccessService.readRevision(userBob, userBobPass, userBob).isVersioned());
     }
 
     @Ignore
@@ -249,21 +390,85 @@ public class ResourceAccessServiceTest {
         assertEquals(userAliceFile, resourceAccessService.read(userBob, userBobPass, userAliceFile));
     }
 
+    @Test
+    public void addRightsShouldNotLeakIntoResourcesSharingTheAcl() throws Exception {
+        Folder folder = new Folder(userAlice, userAlice);
+        File file = new File(userAliceFile, userAliceFile, userAlice, folder.acl);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(userAlice, file)).thenReturn(true);
+        when(roleRepository.findByName(readRole)).thenReturn(dbReadRole);
+        AtomicReference<Resource> published = publish(file);
+
+        resourceAccessService.addRights(userAlice, userAlice, userAliceFile, readRole);
+        assertTrue(published.get().acl.contains(readRole));
+        assertFalse(file.acl.contains(readRole));
+        assertFalse(folder.acl.contains(readRole));
+        assertSame(published.get().acl, new File(userBobFile, "", userBob, Set.of(readRole)).acl);
+    }
+
+    @Test
+    public void addRightsShouldRejectAnUnknownRoleBeforeChangingTheAcl() throws Exception {
+        File file = new File(userAliceFile, userAliceFile, userAlice);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(resourceService.find(any())).thenReturn(file);
+        when(authService.isOwner(userAlice, file)).thenReturn(true);
+
+        try {
+            resourceAccessService.addRights(userAlice, userAlice, userAliceFile, "no such role");
+            fail();
+        } catch (CustomException e) {
+            /* Expected */
+        }
+
+        verify(resourceService, never()).update(any(), any(), any());
+        assertEquals(-1, Acl.findId("no such role"));
+    }
+
     @Test
     @Ignore
     public void createShouldPassForTheRightPermissionsAndPropeNewFile() throws Exception {
         Folder folder = new Folder("root", userBob);
         Folder subfolder = new Folder("folder", userBob);
-        folder.content.add(subfolder);
+        folder.add(subfolder);
 
-        InsertionPoint insertionPoint = new InsertionPoint(subfolder, Collections.singletonList("newFile"));
+        InsertionPoint insertionPoint = new InsertionPoint(folder, subfolder, Collections.singletonList("newFile"), false);
         when(authService.isAuthenticated(any(), any())).thenReturn(true);
-        when(resourceService.exists(any())).thenReturn(false);
-        when(resourceService.find("root/folder/newFile")).thenReturn(folder);
-        when(resourceService.findParent(any(), any())).thenReturn(insertionPoint);
+        when(resourceService.resolve(any())).thenReturn(insertionPoint);
         when(resourceService.createResourceFromPath(any(), any(), any(), any())).thenReturn(new File("newFile", "rw", "newFileContent"));
 
         resourceAccessService.create(userBob, userBobPass, "root/folder/newFile", "newFileContent");
-        assertEquals("newFileContent", ((File)((Folder)folder.content.get(0)).content.get(0)).content);
+        assertEquals("newFileContent", ((File)((Folder)folder.getContent().get(0)).getContent().get(0)).getContent());
+    }
+
+    @Test(expected = ResourceInConflict.class)
+    public void createShouldConflictWhenAnotherCreatePublishedTheSameName() throws Exception {
+        Folder folder = new Folder("root", userBob);
+
+        /* Resolved before the concurrent create published its file */
+        InsertionPoint stale = new InsertionPoint(folder, folder, Collections.singletonList("newFile"), false);
+        InsertionPoint fresh = new InsertionPoint(folder, null, Collections.emptyList(), true);
+
+        when(authService.isAuthenticated(any(), any())).thenReturn(true);
+        when(authService.isOwner(userBob, folder)).thenReturn(true);
+        when(resourceService.resolve(any())).thenReturn(stale, fresh);
+        when(resourceService.createResourceFromPath(any(), any(), any(), any())).thenReturn(new File("newFile", "loser", userBob));
+        when(resourceService.attach(any(), any(), any(), any())).thenReturn(false);
+
+        try {
+            resourceAccessService.create(userBob, userBobPass, "root/newFile", "loser");
+        } finally {
+            verify(resourceService, times(1)).attach(any(), any(), any(), any());
+        }
+    }
+
+    /* Stands in for the storage: find returns the latest published version, update publishes a new one */
+    private AtomicReference<Resource> publish(Resource resource) {
+        AtomicReference<Resource> published = new AtomicReference<>(resource);
+        when(resourceService.find(any())).thenAnswer(invocation -> published.get());
+        when(resourceService.update(any(), any(), any())).thenAnswer(invocation ->
+                published.updateAndGet(invocation.getArgument(1)));
+        return published;
     }
 }
@@ -1,23 +1,37 @@
 package com.ionut.ciuta.posd1.ut;
 
 import com.ionut.ciuta.posd1.model.*;
+import com.ionut.ciuta.posd1.service.BlobStore;
 import com.ionut.ciuta.posd1.service.ResourceService;
 import com.ionut.ciuta.posd1.service.Storage;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.test.util.ReflectionTestUtils;
 
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
@@ -40,6 +54,9 @@ public class ResourceServiceTest {
     @Mock
     private Storage storage;
 
+    @Spy
+    private BlobStore blobStore = new BlobStore("target/test-data", 256, 1 << 20, 0, 0, 1 << 20);
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
@@ -63,6 +80,13 @@ public class ResourceServiceTest {
         assertEquals("file", path.get(2));
     }
 
+    @Test
+    public void getPathShouldReuseParsedSegmentsForSameName() throws Exception {
+        List<String> path = resourceService.getPath(name);
+        assertSame(path, resourceService.getPath(name));
+        assertEquals(Arrays.asList(user, folder, file), path);
+    }
+
     @Test
     public void existsShouldReturnFalseForEmptyResource() throws Exception {
         when(storage.getResource(user)).thenReturn(null);
@@ -74,7 +98,7 @@ public class ResourceServiceTest {
     public void existsShouldReturnTrueForFolder() throws Exception {
         Folder rootFolder = new Folder(root, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
+        rootFolder.add(childFolder);
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertTrue(resourceService.exists(String.join("/", root, folder)));
@@ -84,7 +108,7 @@ public class ResourceServiceTest {
     public void existsShouldReturnFalseForFolder() throws Exception {
         Folder rootFolder = new Folder(root, "");
         Folder childFolder = new Folder("unknown", "");
-        rootFolder.content.add(childFolder);
+        rootFolder.add(childFolder);
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertFalse(resourceService.exists(String.join("/", root, folder)));
@@ -94,8 +118,8 @@ public class ResourceServiceTest {
     public void existsShouldReturnTrueForFile() throws Exception {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
-        childFolder.content.add(new File(file, "", content));
+        rootFolder.add(childFolder);
+        childFolder.add(new File(file, "", content));
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertTrue(resourceService.exists(String.join("/", user, folder, file)));
@@ -105,8 +129,8 @@ public class ResourceServiceTest {
     public void existsShouldReturnFalseForFile() throws Exception {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
-        childFolder.content.add(new File("unknown", "", content));
+        rootFolder.add(childFolder);
+        childFolder.add(new File("unknown", "", content));
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertFalse(resourceService.exists(String.join("/", user, folder, file)));
@@ -116,8 +140,8 @@ public class ResourceServiceTest {
     public void findShouldReturnFile() throws Exception {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
-        childFolder.content.add(new File(file, "", content));
+        rootFolder.add(childFolder);
+        childFolder.add(new File(file, "", content));
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(file, resourceService.find(String.join("/", user, folder, file)).name);
@@ -127,10 +151,10 @@ public class ResourceServiceTest {
     public void findShouldReturnCorrectFileWhenMultiplePresentInFolder() throws Exception {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
-        childFolder.content.add(new File(file, "", content));
-        childFolder.content.add(new File("file1", "", content));
-        childFolder.content.add(new File("file2", "", content));
+        rootFolder.add(childFolder);
+        childFolder.add(new File(file, "", content));
+        childFolder.add(new File("file1", "", content));
+        childFolder.add(new File("file2", "", content));
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(file, resourceService.find(String.join("/", user, folder, file)).name);
@@ -141,30 +165,57 @@ public class ResourceServiceTest {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder(folder, "");
         File fileResource = new File(file, "", content);
-        rootFolder.content.add(fileResource);
-        rootFolder.content.add(childFolder);
-        childFolder.content.add(fileResource);
+        rootFolder.add(fileResource);
+        rootFolder.add(childFolder);
+        childFolder.add(fileResource);
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(file, resourceService.find(String.join("/", user, folder, file)).name);
     }
 
+    @Test
+    public void findShouldReturnFileFromDeepTree() throws Exception {
+        Folder rootFolder = new Folder(user, "");
+        Folder parent = rootFolder;
+        List<String> segments = new ArrayList<>(List.of(user));
+        for(int i = 0; i < 50; i++) {
+            Folder child = new Folder(folder + i, "");
+            parent.add(child);
+            parent.add(new Folder("sibling" + i, ""));
+            segments.add(child.name);
+            parent = child;
+        }
+        parent.add(new File(file, "", content));
+        segments.add(file);
+
+        when(storage.getResource(user)).thenReturn(rootFolder);
+        assertEquals(file, resourceService.find(String.join("/", segments)).name);
+    }
+
     @Test
     public void findShouldReturnNullWhenSearchingFile() throws Exception {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
-        childFolder.content.add(new File("unknown", "", content));
+        rootFolder.add(childFolder);
+        childFolder.add(new File("unknown", "", content));
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(null, resourceService.find(String.join("/", user, folder, file)));
     }
 
+    @Test
+    public void findShouldReturnIndexedResourceWithoutWalkingTree() throws Exception {
+        File fileResource = new File(file, "", content);
+
+        when(storage.getIndexedResource(String.join("/", user, folder, file))).thenReturn(fileResource);
+        assertEquals(fileResource, resourceService.find(name));
+    }
+
     @Test
     public void findShouldReturnFolder() throws Exception {
         Folder rootFolder = new Folder(root, "");
         Folder childFolder = new Folder(folder, "");
-        rootFolder.content.add(childFolder);
+        rootFolder.add(childFolder);
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(folder, resourceService.find(String.join("/", root, folder)).name);
@@ -175,8 +226,8 @@ public class ResourceServiceTest {
         Folder rootFolder = new Folder(root, "");
         Folder childFolder1 = new Folder(folder, "");
         Folder childFolder2 = new Folder("another", "");
-        rootFolder.content.add(childFolder2);
-        rootFolder.content.add(childFolder1);
+        rootFolder.add(childFolder2);
+        rootFolder.add(childFolder1);
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(folder, resourceService.find(String.join("/", root, folder)).name);
@@ -186,7 +237,7 @@ public class ResourceServiceTest {
     public void findShouldReturnNullWhenSearchingFolder() throws Exception {
         Folder rootFolder = new Folder(user, "");
         Folder childFolder = new Folder("unknown", "");
-        rootFolder.content.add(childFolder);
+        rootFolder.add(childFolder);
 
         when(storage.getResource(user)).thenReturn(rootFolder);
         assertEquals(null, resourceService.find(String.join("/", user, folder, file)));
@@ -196,7 +247,7 @@ public class ResourceServiceTest {
     public void findParentShouldReturnParentFolder() throws Exception {
         Folder rootFolder = new Folder(user, user);
         Folder childFolder = new Folder(folder, user);
-        rootFolder.content.add(childFolder);
+        rootFolder.add(childFolder);
 
         InsertionPoint insertionPoint = resourceService.findParent(name, rootFolder);
         assertEquals(childFolder.name, insertionPoint.hook.name);
@@ -208,7 +259,7 @@ public class ResourceServiceTest {
     public void findParentShouldSecondParentFolder() throws Exception {
         Folder rootFolder = new Folder(user, user);
         Folder childFolder = new Folder(user, user);
-        rootFolder.content.add(childFolder);
+        rootFolder.add(childFolder);
 
         InsertionPoint insertionPoint = resourceService.findParent("user/user/test/file", rootFolder);
         assertEquals(childFolder.name, insertionPoint.hook.name);
@@ -217,15 +268,40 @@ public class ResourceServiceTest {
         assertEquals("test", insertionPoint.chain.get(0));
     }
 
+    @Test
+    public void resolveShouldReturnInsertionPointForMissingResource() throws Exception {
+        Folder rootFolder = new Folder(user, user);
+        Folder childFolder = new Folder(folder, user);
+        rootFolder.add(childFolder);
+
+        when(storage.getStagedResource(user)).thenReturn(rootFolder);
+        InsertionPoint insertionPoint = resourceService.resolve("user/folder/test/file");
+        assertEquals(rootFolder, insertionPoint.root);
+        assertEquals(childFolder, insertionPoint.hook);
+        assertEquals(Arrays.asList("test", "file"), insertionPoint.chain);
+        assertFalse(insertionPoint.exists);
+    }
+
+    @Test
+    public void resolveShouldFlagExistingFile() throws Exception {
+        Folder rootFolder = new Folder(user, user);
+        Folder childFolder = new Folder(folder, user);
+        rootFolder.add(childFolder);
+        childFolder.add(new File(file, "", content));
+
+        when(storage.getStagedResource(user)).thenReturn(rootFolder);
+        assertTrue(resourceService.resolve(name).exists);
+    }
+
     @Test
     public void createResourceFromPathShouldReturnValidResource() throws Exception {
         List<String> path = Arrays.asList(user, folder, file);
 
         Folder result = (Folder) resourceService.createResourceFromPath(path, content, "", Set.of());
         assertEquals(user, result.name);
-        assertEquals(folder, result.content.get(0).name);
-        assertEquals(file, ((Folder)result.content.get(0)).content.get(0).name);
-        assertEquals(content, ((File)((Folder)result.content.get(0)).content.get(0)).content);
+        assertEquals(folder, result.getContent().get(0).name);
+        assertEquals(file, ((Folder)result.getContent().get(0)).getContent().get(0).name);
+        assertEquals(content, ((File)((Folder)result.getContent().get(0)).getContent().get(0)).getContent());
     }
 
     @Test
@@ -242,8 +318,102 @@ public class ResourceServiceTest {
 
         Folder result = (Folder) resourceService.createResourceFromPath(path, null, "", Set.of());
         assertEquals(user, result.name);
-        assertEquals(user, result.content.get(0).name);
+        assertEquals(user, result.getContent().get(0).name);
+    }
+
+    @Test
+    public void findShouldEmitTraversalEventWhenRecording() throws Exception {
+        Folder rootFolder = new Folder(root, "");
+        Folder childFolder = new Folder(folder, "");
+        rootFolder.add(childFolder);
+        childFolder.add(new File(file, content, ""));
+
+        when(storage.getResource(user)).thenReturn(rootFolder);
+
+        Path dump = Files.createTempFile("traversal", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.ionut.ciuta.posd1.Traversal");
+            recording.start();
+            resourceService.find(name);
+            recording.stop();
+            recording.dump(dump);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+            assertEquals(1, events.size());
+            assertEquals("find", events.get(0).getString("operation"));
+            assertEquals(String.join("/", user, folder, file), events.get(0).getString("path"));
+            assertEquals(3, events.get(0).getInt("depth"));
+            assertEquals(3, events.get(0).getInt("nodesVisited"));
+            assertTrue(events.get(0).getBoolean("matched"));
+        } finally {
+            Files.delete(dump);
+        }
     }
 
+    @Test
+    public void attachShouldPublishOnlyOneOfConcurrentCreatesWithTheSameName() throws Exception {
+        Storage realStorage = new Storage();
+        realStorage.addResource(root, new Folder(root, ""));
+        ReflectionTestUtils.setField(resourceService, "storage", realStorage);
+
+        String path = String.join("/", root, folder);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for(int i = 0; i < threads; i++) {
+            String owner = "owner" + i;
+            results.add(executor.submit(() -> {
+                start.await();
+                while(true) {
+                    InsertionPoint insertionPoint = resourceService.resolve(path);
+                    if(insertionPoint.exists) {
+                        return false;
+                    }
+
+                    Resource node = resourceService.createResourceFromPath(insertionPoint.chain, null, owner, Set.of());
+                    if(resourceService.attach(path, insertionPoint, node)) {
+                        return true;
+                    }
+                }
+            }));
+        }
+
+        start.countDown();
+        int created = 0;
+        for(Future<Boolean> result : results) {
+            created += result.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        Folder published = (Folder) realStorage.getResource(root);
+        assertEquals(1, created);
+        assertEquals(1, published.getContent().size());
+        assertSame(published.getContent().get(0), resourceService.find(path));
+    }
 
+    @Test
+    public void updateShouldLeaveOlderSnapshotsUnchanged() throws Exception {
+        Folder rootFolder = new Folder(root, "");
+        Folder childFolder = new Folder(folder, "");
+        Folder sibling = new Folder("sibling", "");
+        rootFolder.add(childFolder);
+        rootFolder.add(sibling);
+        childFolder.add(new File(file, content, ""));
+
+        Storage realStorage = new Storage();
+        realStorage.addResource(root, rootFolder);
+        ReflectionTestUtils.setField(resourceService, "storage", realStorage);
+
+        Storage.Snapshot before = realStorage.snapshot();
+        resourceService.update(name, r -> ((File) r).withContent("newContent"));
+        Storage.Snapshot after = realStorage.snapshot();
+
+        assertEquals(before.version + 1, after.version);
+        assertEquals(content, ((File) resourceService.find(before, name)).getContent());
+        assertEquals("newContent", ((File) resourceService.find(after, name)).getContent());
+        assertEquals("newContent", ((File) resourceService.find(name)).getContent());
+        assertSame(sibling, resourceService.find(after, String.join("/", root, "sibling")));
+    }
 }
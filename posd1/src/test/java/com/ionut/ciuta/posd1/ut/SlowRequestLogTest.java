@@ -0,0 +1,50 @@
+package com.ionut.ciuta.posd1.ut;
+
+import com.ionut.ciuta.posd1.service.RequestTrace;
+import com.ionut.ciuta.posd1.service.RequestTrace.Phase;
+import com.ionut.ciuta.posd1.service.SlowRequestLog;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlowRequestLogTest {
+    @Test
+    public void phasesOutsideOfARequestShouldBeIgnored() throws Exception {
+        RequestTrace.phase(Phase.AUTHENTICATION);
+
+        assertNull(RequestTrace.end());
+    }
+
+    @Test
+    public void slowRequestsShouldBeKeptNewestFirst() throws Exception {
+        SlowRequestLog slowRequestLog = new SlowRequestLog(0, 2);
+
+        for(int i = 0; i < 3; i++) {
+            RequestTrace.begin("request" + i);
+            RequestTrace.phase(Phase.AUTHENTICATION);
+            Thread.sleep(1);
+            RequestTrace.phase(Phase.RENDERING);
+            slowRequestLog.record(RequestTrace.end());
+        }
+
+        List<RequestTrace> recent = slowRequestLog.recent();
+        assertEquals(2, recent.size());
+        assertEquals("request2", recent.get(0).getRequest());
+        assertEquals("request1", recent.get(1).getRequest());
+        assertTrue(recent.get(0).getPhases().get("authentication") >= 1000);
+    }
+
+    @Test
+    public void fastRequestsShouldNotBeKept() throws Exception {
+        SlowRequestLog slowRequestLog = new SlowRequestLog(60000, 10);
+
+        RequestTrace.begin("request");
+        slowRequestLog.record(RequestTrace.end());
+
+        assertTrue(slowRequestLog.recent().isEmpty());
+    }
+}
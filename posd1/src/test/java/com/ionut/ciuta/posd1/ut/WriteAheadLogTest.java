@@ -0,0 +1,209 @@
+package com.ionut.ciuta.posd1.ut;
+
+import com.ionut.ciuta.posd1.exception.CustomException;
+import com.ionut.ciuta.posd1.model.File;
+import com.ionut.ciuta.posd1.model.InsertionPoint;
+import com.ionut.ciuta.posd1.model.Mutation;
+import com.ionut.ciuta.posd1.model.Resource;
+import com.ionut.ciuta.posd1.service.BlobStore;
+import com.ionut.ciuta.posd1.service.ResourceService;
+import com.ionut.ciuta.posd1.service.Storage;
+import com.ionut.ciuta.posd1.service.WriteAheadLog;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteAheadLogTest {
+    private final String file = "/alice/folder/file";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<WriteAheadLog> logs = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for(WriteAheadLog log : logs) {
+            log.destroy();
+        }
+    }
+
+    @Test
+    public void loggedMutationsShouldBeReplayedOnRecovery() throws Exception {
+        Node before = new Node();
+        create(before.resourceService, file, "first");
+        write(before.resourceService, file, "second");
+        addRights(before.resourceService, file, "readers");
+        long version = before.storage.snapshot().version;
+
+        /* No shutdown, the second node only sees what reached the log */
+        Node after = new Node();
+        Resource recovered = after.resourceService.find(file);
+
+        assertEquals("second", ((File) recovered).getContent());
+        assertEquals(2, ((File) recovered).getVersion());
+        assertTrue(recovered.acl.contains("readers"));
+        assertTrue(after.storage.snapshot().version >= version);
+    }
+
+    @Test
+    public void recoveryShouldReplayTheLogTailOverTheSnapshot() throws Exception {
+        Node before = new Node();
+        create(before.resourceService, file, "first");
+        before.log.checkpoint();
+        write(before.resourceService, file, "second");
+
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve("snapshot.bin")));
+        assertEquals(1, segments().size());
+
+        Node after = new Node();
+        assertEquals("second", ((File) after.resourceService.find(file)).getContent());
+        assertEquals(2, ((File) after.resourceService.find(file)).getVersion());
+    }
+
+    @Test
+    public void recoveryShouldIgnoreATornRecord() throws Exception {
+        Node before = new Node();
+        create(before.resourceService, file, "first");
+        write(before.resourceService, file, "second");
+
+        /* A crash in the middle of an append leaves a partial frame behind */
+        Path last = segments().get(segments().size() - 1);
+        Files.write(last, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        Node after = new Node();
+        assertEquals("second", ((File) after.resourceService.find(file)).getContent());
+
+        write(after.resourceService, file, "third");
+        assertEquals("third", ((File) new Node().resourceService.find(file)).getContent());
+    }
+
+    @Test
+    public void checkpointShouldLeaveColdContentsCompressedAndUncached() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 100; i++) {
+            text.append("cold line ").append(i % 5).append('\n');
+        }
+
+        Node before = new Node();
+        create(before.resourceService, file, text.toString());
+        assertEquals(1, before.blobStore.compact());
+
+        before.log.checkpoint();
+
+        assertEquals(1, before.blobStore.getCompressedContents());
+        assertEquals(0, before.blobStore.getHeapBytes());
+        assertEquals(0, before.blobStore.getCacheHits() + before.blobStore.getCacheMisses());
+        assertEquals(text.toString(), ((File) new Node().resourceService.find(file)).getContent());
+    }
+
+    @Test
+    public void failedAppendShouldNotPublishTheChange() throws Exception {
+        Node before = new Node();
+        create(before.resourceService, file, "first");
+        long version = before.storage.snapshot().version;
+
+        /* The next group commit fails to write */
+        ((FileChannel) ReflectionTestUtils.getField(before.log, "segment")).close();
+
+        try {
+            write(before.resourceService, file, "second");
+            fail();
+        } catch (CustomException e) {
+            assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, e.status);
+        }
+
+        assertEquals("first", ((File) before.resourceService.find(file)).getContent());
+        assertEquals(version, before.storage.snapshot().version);
+
+        /* Later changes would carry the lost one, the log keeps refusing them */
+        try {
+            addRights(before.resourceService, file, "readers");
+            fail();
+        } catch (CustomException e) {
+            assertFalse(before.resourceService.find(file).acl.contains("readers"));
+        }
+
+        assertEquals("first", ((File) new Node().resourceService.find(file)).getContent());
+    }
+
+    @Test(expected = CustomException.class)
+    public void writesAfterShutdownShouldFailInsteadOfWaiting() throws Exception {
+        Node node = new Node();
+        create(node.resourceService, file, "first");
+        node.log.destroy();
+
+        write(node.resourceService, file, "second");
+    }
+
+    @Test
+    public void unloggedUpdatesShouldNotBeRecovered() throws Exception {
+        Node before = new Node();
+        create(before.resourceService, file, "first");
+        before.resourceService.update(file, current -> ((File) current).withContent("lost"));
+
+        assertEquals("first", ((File) new Node().resourceService.find(file)).getContent());
+    }
+
+    private List<Path> segments() throws Exception {
+        try(Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void create(ResourceService resourceService, String name, String content) {
+        InsertionPoint insertionPoint;
+        do {
+            insertionPoint = resourceService.resolve(name);
+            assertFalse(insertionPoint.exists);
+        } while(!resourceService.attach(name, insertionPoint,
+                resourceService.createResourceFromPath(insertionPoint.chain, content, "alice", insertionPoint.hook.acl),
+                Mutation.create(name, content, "alice")));
+    }
+
+    private void write(ResourceService resourceService, String name, String content) {
+        resourceService.update(name, current -> ((File) current).withContent(content), Mutation.write(name, content));
+    }
+
+    private void addRights(ResourceService resourceService, String name, String role) {
+        resourceService.update(name, current -> current.withAcl(current.acl.with(role)), Mutation.addRights(name, role));
+    }
+
+    /* One application instance over the shared data directory */
+    private class Node {
+        final Storage storage = new Storage();
+        final WriteAheadLog log = new WriteAheadLog(true, folder.getRoot().getPath(), 16, 3_600_000, 1_000_000);
+        final ResourceService resourceService = new ResourceService();
+        final BlobStore blobStore = new BlobStore(folder.getRoot().getPath(), 4, 4096, 0, 0, 1 << 20);
+
+        Node() throws Exception {
+            storage.afterPropertiesSet();
+            ReflectionTestUtils.setField(log, "storage", storage);
+            ReflectionTestUtils.setField(log, "blobStore", blobStore);
+            ReflectionTestUtils.setField(resourceService, "blobStore", blobStore);
+            ReflectionTestUtils.setField(resourceService, "storage", storage);
+            ReflectionTestUtils.setField(resourceService, "writeAheadLog", log);
+            resourceService.afterPropertiesSet();
+            logs.add(log);
+        }
+    }
+}